@@ -0,0 +1,70 @@
+package ffdiff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Base block index: all blocks inserted into a new index, then all looked up, found or not. */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class BlockIndexBenchmark {
+
+	//------------------------------------------------------------------------
+	/** Blocks, as of a 128 MB base in 2 kB blocks, or 16 GB in 1 kB blocks */
+	@Param ({ "65536", "1048576", "16777216" })
+	public int blocks;
+
+	@Param ({ "1024" })
+	public int sizeBlock;
+
+	private long[] keys1, keys2, missing;
+	private BlockIndex index;
+
+	//------------------------------------------------------------------------
+	@Setup
+	public void setup () {
+		final Random random = new Random (1);
+		keys1 = new long [blocks];
+		keys2 = new long [blocks];
+		missing = new long [blocks];
+		for (int i = 0 ; i < blocks ; i++) {
+			keys1[i] = random.nextLong ();
+			keys2[i] = random.nextLong ();
+			missing[i] = random.nextLong ();
+		}
+		index = insert ();
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public BlockIndex insert () {
+		final BlockIndex index = new BlockIndex (blocks);
+		for (int i = 0 ; i < blocks ; i++) {
+			index.put (keys1[i], keys2[i], sizeBlock, (long) i * sizeBlock);
+		}
+		return index;
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void lookupFound (final Blackhole hole) {
+		for (int i = 0 ; i < blocks ; i++) {
+			hole.consume (index.get (keys1[i], keys2[i], sizeBlock));
+		}
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void lookupMissing (final Blackhole hole) {
+		for (int i = 0 ; i < blocks ; i++) {
+			hole.consume (index.get (missing[i], keys2[i], sizeBlock));
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import ffdiff.ArgsReader.Options;
+
+/** Diff and patch of whole synthetic files on disk, as the command line runs them. */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 2)
+@Measurement (iterations = 5)
+@Fork (1)
+public class EndToEndBenchmark {
+
+	//------------------------------------------------------------------------
+	@Param ({ "RANDOM", "TAR", "SPARSE", "EDITED" })
+	public Inputs.Kind input;
+
+	/** Megabytes of base and of target */
+	@Param ({ "16", "128" })
+	public int sizeFile;
+
+	/** 0 for the block size chosen by file sizes */
+	@Param ({ "0", "1024", "4096" })
+	public int sizeBlock;
+
+	@Param ({ "fixed" })
+	public String chunking;
+
+	@Param ({ "none" })
+	public String compression;
+
+	private Path dir;
+	private Options diff, patch;
+
+	//------------------------------------------------------------------------
+	@Setup (Level.Trial)
+	public void setup () throws Exception {
+		// Patch prints progress to standard output
+		System.setOut (new PrintStream (NullOutputStream.NULL_OUTPUT_STREAM));
+		dir = Files.createTempDirectory ("ffdiff-bench");
+		Inputs.write (input, sizeFile * 1024 * 1024, dir);
+		diff = options ("diff", "target", "diff.ffdiff");
+		new Diff (diff).run ();
+		diff = options ("diff", "target", "out.ffdiff");
+		patch = options ("patch", "out", "diff.ffdiff");
+	}
+
+	//------------------------------------------------------------------------
+	private Options options (final String mode, final String target, final String diff) throws Exception {
+		final Options o = new ArgsReader ().read (new String[] { "-mode", mode, "-base", dir.resolve ("base").toString (),
+			"-target", dir.resolve (target).toString (), "-diff", dir.resolve (diff).toString (),
+			"-chunking", chunking, "-compression", compression });
+		if (sizeBlock > 0 && o.mode == ArgsReader.Modes.DIFF) {
+			o.sizeBlock = sizeBlock;
+			if (o.chunking == ArgsReader.Chunkings.CDC) {
+				o.sizeChunkMin = sizeBlock;
+				o.sizeChunkAvg = sizeBlock * 4;
+				o.sizeChunkMax = sizeBlock * 32;
+			}
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	@TearDown (Level.Trial)
+	public void tearDown () throws IOException {
+		FileUtils.deleteDirectory (dir.toFile ());
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void diff () throws Exception {
+		new Diff (diff).run ();
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void patch () throws Exception {
+		new Patch (patch).run ();
+	}
+
+}
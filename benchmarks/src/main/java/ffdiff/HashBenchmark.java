@@ -0,0 +1,64 @@
+package ffdiff;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Block hashes: UniHash built new or reset per block, against xxHash64 of fast hashes. One operation is one block. */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class HashBenchmark {
+
+	//------------------------------------------------------------------------
+	private static final int SIZE_DATA = 16 * 1024 * 1024;
+
+	@Param ({ "128", "1024", "4096", "65536" })
+	public int sizeBlock;
+
+	private ByteBuffer data;
+	private final UniHash hash = new UniHash ();
+	private int offset = 0;
+
+	//------------------------------------------------------------------------
+	@Setup
+	public void setup () {
+		data = ByteBuffer.allocateDirect (SIZE_DATA);
+		data.put (Inputs.random (new Random (1), SIZE_DATA)).clear ();
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Next block of data, position and limit around it */
+	private ByteBuffer next () {
+		if (offset + sizeBlock > SIZE_DATA) {
+			offset = 0;
+		}
+		data.limit (offset + sizeBlock).position (offset);
+		offset += sizeBlock;
+		return data;
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public UniHash uniHashNew () {
+		return new UniHash (next ());
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public UniHash uniHashReset () {
+		return hash.reset (next ());
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public long xxHash64 () {
+		return XXHash64.hash (next ());
+	}
+
+}
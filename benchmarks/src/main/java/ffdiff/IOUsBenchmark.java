@@ -0,0 +1,87 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+/** Raw copies of Patch: base ranges by transfer, literal buffers by write through a buffered stream. */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3)
+@Measurement (iterations = 5)
+@Fork (1)
+public class IOUsBenchmark {
+
+	//------------------------------------------------------------------------
+	/** Megabytes copied per operation */
+	@Param ({ "64" })
+	public int sizeFile;
+
+	/** Bytes per call, as the length of a copy or literal section */
+	@Param ({ "4096", "1048576" })
+	public int sizeCopy;
+
+	private Path dir;
+	private FileChannel in, out;
+	private ByteBuffer heap, direct;
+
+	//------------------------------------------------------------------------
+	@Setup
+	public void setup () throws IOException {
+		dir = Files.createTempDirectory ("ffdiff-bench");
+		final Path base = dir.resolve ("base");
+		Files.write (base, Inputs.random (new Random (1), sizeFile * 1024 * 1024));
+		in = FileChannel.open (base, StandardOpenOption.READ);
+		out = FileChannel.open (dir.resolve ("target"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		heap = ByteBuffer.wrap (Inputs.random (new Random (2), sizeCopy));
+		direct = ByteBuffer.allocateDirect (sizeCopy).put (heap.duplicate ());
+		direct.flip ();
+	}
+
+	//------------------------------------------------------------------------
+	@TearDown
+	public void tearDown () throws IOException {
+		in.close ();
+		out.close ();
+		FileUtils.deleteDirectory (dir.toFile ());
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void transfer () throws IOException {
+		out.position (0);
+		for (long offset = 0 ; offset < in.size () ; offset += sizeCopy) {
+			IOUs.transfer (in, offset, Long.min (sizeCopy, in.size () - offset), out);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void writeHeap () throws IOException {
+		write (heap);
+	}
+
+	//------------------------------------------------------------------------
+	@Benchmark
+	public void writeDirect () throws IOException {
+		write (direct);
+	}
+
+	//------------------------------------------------------------------------
+	private void write (final ByteBuffer literal) throws IOException {
+		out.position (0);
+		final OutputStream stream = new BufferedOutputStream (Channels.newOutputStream (out), 1024 * 1024);
+		for (long done = 0 ; done < (long) sizeFile * 1024 * 1024 ; done += sizeCopy) {
+			IOUs.write (literal.duplicate (), stream, out);
+		}
+		stream.flush ();
+	}
+
+}
@@ -0,0 +1,117 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Deterministic synthetic base and target files: the same kind, size and seed always give the same bytes,
+ * so runs of a benchmark compare across commits.
+ */
+public class Inputs {
+
+	//------------------------------------------------------------------------
+	private static final long SEED = 20190925;
+	private static final int TAR_BLOCK = 512, SPARSE_EXTENT = 4096;
+
+	//------------------------------------------------------------------------
+	public enum Kind {
+		/** Target unrelated to base: nothing to copy */
+		RANDOM,
+		/** Tar of entries padded to 512 bytes; target adds an entry near the start, shifting all the others */
+		TAR,
+		/** Disk image mostly of zeros with 4 kB data extents; target rewrites and adds extents */
+		SPARSE,
+		/** Binary with a few bytes edited at 16 places */
+		EDITED,
+	}
+
+	//------------------------------------------------------------------------
+	/** Base and target of a kind, written into dir as base and target */
+	public static void write (final Kind kind, final int size, final Path dir) throws IOException {
+		final byte[][] pair = generate (kind, size);
+		Files.write (dir.resolve ("base"), pair[0]);
+		Files.write (dir.resolve ("target"), pair[1]);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Base and target of about size bytes each */
+	public static byte[][] generate (final Kind kind, final int size) {
+		final Random random = new Random (SEED);
+		switch (kind) {
+		case RANDOM: return new byte[][] { random (random, size), random (random, size) };
+		case TAR:    return tar (random, size);
+		case SPARSE: return sparse (random, size);
+		default:     return edited (random, size);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Random bytes, also usable as block contents */
+	public static byte[] random (final Random random, final int size) {
+		final byte[] b = new byte [size];
+		random.nextBytes (b);
+		return b;
+	}
+
+	//------------------------------------------------------------------------
+	private static byte[][] tar (final Random random, final int size) {
+		final List<byte[]> entries = new ArrayList<byte[]> ();
+		for (int total = 0 ; total < size ;) {
+			final byte[] entry = tarEntry (random, entries.size (), random.nextInt (256 * 1024) + 1);
+			entries.add (entry);
+			total += entry.length;
+		}
+		final ByteArrayOutputStream base = new ByteArrayOutputStream (size + TAR_BLOCK * 4);
+		final ByteArrayOutputStream target = new ByteArrayOutputStream (size + TAR_BLOCK * 4);
+		for (int i = 0 ; i < entries.size () ; i++) {
+			base.write (entries.get (i), 0, entries.get (i).length);
+			if (i == 1) {
+				final byte[] added = tarEntry (random, entries.size (), 1000);
+				target.write (added, 0, added.length);
+			}
+			target.write (entries.get (i), 0, entries.get (i).length);
+		}
+		return new byte[][] { base.toByteArray (), target.toByteArray () };
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Header block with the entry name, then the content padded to 512 bytes */
+	private static byte[] tarEntry (final Random random, final int id, final int length) {
+		final int padded = (length + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+		final ByteBuffer entry = ByteBuffer.allocate (TAR_BLOCK + padded);
+		entry.put (String.format ("layer/%08d.bin", id).getBytes (StandardCharsets.US_ASCII));
+		entry.position (TAR_BLOCK);
+		entry.put (random (random, length));
+		return entry.array ();
+	}
+
+	//------------------------------------------------------------------------
+	private static byte[][] sparse (final Random random, final int size) {
+		final int extents = size / SPARSE_EXTENT;
+		final byte[] base = new byte [extents * SPARSE_EXTENT];
+		for (int i = 0 ; i < extents / 8 ; i++) {
+			System.arraycopy (random (random, SPARSE_EXTENT), 0, base, random.nextInt (extents) * SPARSE_EXTENT, SPARSE_EXTENT);
+		}
+		final byte[] target = base.clone ();
+		for (int i = 0 ; i < extents / 64 ; i++) {
+			System.arraycopy (random (random, SPARSE_EXTENT), 0, target, random.nextInt (extents) * SPARSE_EXTENT, SPARSE_EXTENT);
+		}
+		return new byte[][] { base, target };
+	}
+
+	//------------------------------------------------------------------------
+	private static byte[][] edited (final Random random, final int size) {
+		final byte[] base = random (random, size), target = base.clone ();
+		for (int i = 0 ; i < 16 ; i++) {
+			final int offset = random.nextInt (size - 8);
+			for (int k = random.nextInt (8) ; k >= 0 ; k--) {
+				target[offset + k] ^= (byte) (random.nextInt (255) + 1);
+			}
+		}
+		return new byte[][] { base, target };
+	}
+
+}
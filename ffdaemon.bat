@@ -0,0 +1,2 @@
+@echo off
+java -jar ffdiff.jar -mode server %*
@@ -1,2 +1,2 @@
 @echo off
-java -jar ffdiff.jar -mode patch %*
+java -cp ffdiff.jar ffdiff.Client -mode patch %*
@@ -1,6 +1,7 @@
 package ffdiff;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.*;
 import java.util.*;
@@ -17,19 +18,96 @@ class ArgsReader {
 	//------------------------------------------------------------------------
 	private static final PrintStream stdout = System.out;
 	private static final String DEFAULT_DIFF_EXT = ".ffdiff";
+	/** File name of standard input or output */
+	static final String STREAM = "-";
 
 	//------------------------------------------------------------------------
-	class Options {
+	class Options implements Cloneable {
+		/** Usage asked for, or nothing to do */
+		boolean help = false;
 		boolean verbose = false;
 		Modes mode = null;
 		Path pathBase = null, pathTarget = null, pathDiff = null;
+		/** All bases by -base order, the primary one first. Older versions after it provide more blocks to copy. */
+		List<Path> pathBases = new ArrayList<Path> ();
+		/** Batch of targets diffed against one base, into the diff directory. null for one target. */
+		List<Path> pathTargets = null;
+		/** Chained diffs composed into the diff file, in chain order. null unless compose mode. */
+		List<Path> pathDiffs = null;
 		long sizeBase = 0, sizeTarget = 0, sizeDiff = 0;
+		/** Total size of all bases */
+		long sizeBases = 0;
 		int sizeBlock = 0;
+		Chunkings chunking = Chunkings.FIXED;
+		/** Content-defined chunk sizes, 0 for defaults derived from block size */
+		int sizeChunkMin = 0, sizeChunkAvg = 0, sizeChunkMax = 0;
+		int threads = Runtime.getRuntime ().availableProcessors ();
+		Hashes hash = Hashes.STRONG;
+		Compressions compression = Compressions.NONE;
+		Verifications verify = Verifications.FULL;
+		/** Base signature cache directory, null for none */
+		Path pathCache = null;
+		long sizeCacheMax = 4096L * 1024 * 1024;
+		/** JSON summary of phases and counters, null for none */
+		Path pathMetrics = null;
+		/** Server: loopback port, 0 for any free one, and jobs run at the same time */
+		int port = 0, jobs = 2;
+		/** Server: memory budget of running jobs, and of base indexes kept between jobs */
+		long sizeMemory = 2048L * 1024 * 1024, sizeIndexCache = 1024L * 1024 * 1024;
+
+		/** @return Shallow copy, to change per target of a batch */
+		Options copy () {
+			try {
+				return (Options) clone ();
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException (e);
+			}
+		}
 	}
 
 	enum Modes {
 		DIFF,
 		PATCH,
+		COMPOSE,
+		SERVER,
+	}
+
+	enum Chunkings {
+		/** Target hashed at fixed block boundaries */
+		FIXED,
+		/** Target scanned one byte at a time with a rolling weak checksum */
+		ROLLING,
+		/** Base and target cut into content-defined chunks of variable length */
+		CDC,
+	}
+
+	enum Hashes {
+		/** Blocks matched by length + MD5 + SHA1 */
+		STRONG,
+		/** Blocks matched by xxHash64, confirmed byte by byte against base, MD5 only for matched blocks */
+		FAST,
+	}
+
+	enum Compressions {
+		/** DIFF sections stored as they are */
+		NONE,
+		/** DIFF sections compressed by DEFLATE, stored as they are when that saves nothing */
+		DEFLATE,
+		/** DIFF sections compressed by LZMA, stored as they are when that saves nothing */
+		LZMA,
+		/** Codec chosen for every DIFF section by a sample of it */
+		AUTO,
+		/** DIFF sections compressed by DEFLATE with base bytes near them as preset dictionary */
+		BASE,
+	}
+
+	enum Verifications {
+		/** Section checksums ignored */
+		OFF,
+		/** Checksums of one section in 16 verified */
+		SAMPLE,
+		/** Checksums of all sections verified */
+		FULL,
 	}
 
 	//------------------------------------------------------------------------
@@ -41,9 +119,15 @@ class ArgsReader {
 	}
 
 	//------------------------------------------------------------------------
-	private static final int MIN_BLOCK_SIZE = 128, MAX_BLOCK_COUNT = 16 * 1024 * 1024;
+	static final int MIN_BLOCK_SIZE = 128;
+	private static final int MAX_BLOCK_COUNT = 16 * 1024 * 1024;
+	/** CPMB Base Id is 1 byte */
+	static final int MAX_BASES = 256;
+	/** CP24 Copy Length is a 3 bytes integer */
+	private static final int MAX_CHUNK_SIZE = 0xffffff;
 
 	//------------------------------------------------------------------------
+	/** @return Options, or null when usage was shown instead */
 	Options read (String[] args) throws IllegalArgsException {
 		Options o = new Options ();
 		LinkedList<String> a = new LinkedList<String> (Arrays.asList (args));
@@ -55,7 +139,22 @@ class ArgsReader {
 		table.put ("mode",      () -> argMode       (o, pairOptionValue));
 		table.put ("base",      () -> argBase       (o, pairOptionValue));
 		table.put ("target",    () -> argTarget     (o, pairOptionValue));
+		table.put ("targets",   () -> argTargets    (o, pairOptionValue));
 		table.put ("diff",      () -> argDiff       (o, pairOptionValue));
+		table.put ("diffs",     () -> argDiffs      (o, pairOptionValue));
+		table.put ("chunking",  () -> argChunking   (o, pairOptionValue));
+		table.put ("chunksize", () -> argChunkSize  (o, pairOptionValue));
+		table.put ("threads",   () -> argThreads    (o, pairOptionValue));
+		table.put ("hash",      () -> argHash       (o, pairOptionValue));
+		table.put ("compression", () -> argCompression (o, pairOptionValue));
+		table.put ("verify",    () -> argVerify     (o, pairOptionValue));
+		table.put ("cache",     () -> argCache      (o, pairOptionValue));
+		table.put ("cachesize", () -> argCacheSize  (o, pairOptionValue));
+		table.put ("metrics",   () -> argMetrics    (o, pairOptionValue));
+		table.put ("port",      () -> argPort       (o, pairOptionValue));
+		table.put ("jobs",      () -> argJobs       (o, pairOptionValue));
+		table.put ("memory",    () -> argMemory     (o, pairOptionValue));
+		table.put ("indexcache", () -> argIndexCache (o, pairOptionValue));
 		final String[] noValueOptions = new String[] { "help", "verbose", "debug" };
 
 		try {
@@ -76,6 +175,10 @@ class ArgsReader {
 				: new IllegalArgsException (e.getMessage ());
 		}
 
+		if (o.help || o.mode != Modes.SERVER && o.pathBase == null && o.pathTarget == null && o.pathDiff == null) {
+			help ();
+			return null;
+		}
 		checkArgs (o);
 		calcSize (o);
 		return o;
@@ -83,33 +186,152 @@ class ArgsReader {
 
 	//------------------------------------------------------------------------
 	private void checkArgs (Options o) throws IllegalArgsException {
-		if (o.pathBase == null && o.pathTarget == null && o.pathDiff == null) {
-			argHelp (o, null);
+		if (o.mode == Modes.SERVER) {
+			if (o.pathBase != null || o.pathTarget != null || o.pathDiff != null || o.pathTargets != null) {
+				throw new IllegalArgsException ("Server mode takes no files: every job brings its own");
+			}
+			return;
+		}
+		if (o.pathTargets != null) {
+			checkBatch (o);
+			return;
+		}
+		if (o.mode == Modes.COMPOSE) {
+			checkCompose (o);
+			return;
 		}
 		if (o.pathBase == null || o.pathTarget == null || o.pathDiff == null) {
 			throw new IllegalArgsException ("Base, target and diff file path should be all specified");
 		}
+		checkBases (o);
+		if (o.mode == Modes.DIFF && isStream (o.pathDiff)) {
+			throw new IllegalArgsException ("Diff file should be a file, as its header is completed at last");
+		}
 		if (o.mode == Modes.DIFF && FilenameUtils.getExtension (o.pathDiff.toString ()).isEmpty ()) {
 			o.pathDiff = Paths.get (o.pathDiff.toString () + DEFAULT_DIFF_EXT);
 		}
 	}
 
+	//------------------------------------------------------------------------
+	private void checkBases (final Options o) throws IllegalArgsException {
+		if (o.pathBases.size () > MAX_BASES) {
+			throw new IllegalArgsException ("Bases should be at most " + MAX_BASES);
+		}
+		if (o.pathBases.size () > 1 && o.pathCache != null) {
+			throw new IllegalArgsException ("Base signature cache is for one base only");
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void checkCompose (final Options o) throws IllegalArgsException {
+		if (o.pathBase == null || o.pathDiffs == null || o.pathDiff == null) {
+			throw new IllegalArgsException ("Base file, chained diff files and diff file path should be all specified");
+		}
+		if (o.pathBases.size () > 1) {
+			throw new IllegalArgsException ("Diffs of several bases are not composable");
+		}
+		if (o.pathMetrics != null) {
+			throw new IllegalArgsException ("Metrics are for one diff or patch only");
+		}
+		if (o.pathDiffs.size () < 2) {
+			throw new IllegalArgsException ("At least 2 chained diff files should be specified");
+		}
+		if (isStream (o.pathDiff) || o.pathDiffs.contains (o.pathDiff)) {
+			throw new IllegalArgsException ("Diff file should be a new file, not standard output or a chained diff");
+		}
+		if (FilenameUtils.getExtension (o.pathDiff.toString ()).isEmpty ()) {
+			o.pathDiff = Paths.get (o.pathDiff.toString () + DEFAULT_DIFF_EXT);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void checkBatch (final Options o) throws IllegalArgsException {
+		if (o.mode != Modes.DIFF || o.pathTarget != null) {
+			throw new IllegalArgsException ("Targets are for diff mode only, instead of target");
+		}
+		if (o.pathBase == null || o.pathDiff == null) {
+			throw new IllegalArgsException ("Base file and diff directory path should be both specified");
+		}
+		checkBases (o);
+		if (o.pathMetrics != null) {
+			throw new IllegalArgsException ("Metrics are for one diff or patch only");
+		}
+		if (o.pathTargets.isEmpty ()) {
+			throw new IllegalArgsException ("No target matched");
+		}
+		final Set<Path> names = new HashSet<Path> ();
+		for (Path p : o.pathTargets) {
+			if (! names.add (p.getFileName ())) {
+				throw new IllegalArgsException ("Targets of the same file name go to the same diff file: " + p.getFileName ());
+			}
+		}
+	}
+
 	//------------------------------------------------------------------------
 	private void calcSize (Options o) throws IllegalArgsException {
+		if (o.mode == Modes.SERVER) {
+			return;
+		}
 		getFileSize (o);
 		if (o.mode == Modes.DIFF) {
 			calcBlockSize (o);
+			calcChunkSize (o);
 		}
 	}
 
 	//------------------------------------------------------------------------
 	private Options argHelp (final Options o, final DefaultKeyValue<String, String> pairOptionValue) {
+		o.help = true;
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private void help () {
 		stdout.println ("Usage: -mode diff|patch -base {file name} -target {file name} -diff {file name}");
+		stdout.println ("       -mode diff -base {file name} -targets {file names} -diff {directory}");
+		stdout.println ("       -mode compose -base {file name} -diffs {file names} -diff {file name}");
+		stdout.println ("       -mode server [-port {port}] [-jobs {count}] [-memory {megabytes}] [-indexcache {megabytes}]");
+		stdout.println ("       [-chunking fixed|rolling|cdc] [-chunksize {min},{avg},{max}] [-threads {count}]");
+		stdout.println ("       [-hash strong|fast] [-compression none|deflate|lzma|auto|base] [-verify off|sample|full]");
+		stdout.println ("       [-cache {directory}] [-cachesize {megabytes}] [-metrics {file name}]");
 		stdout.println ();
 		stdout.println ("        mode diff:  Create diff from base and target. Typically diff file is much smaller.");
 		stdout.println ("        mode patch: Restore target from base and diff.");
-		System.exit (0);
-		return o;
+		stdout.println ("        mode compose: Compose chained diffs, comma separated in chain order, into one diff from base.");
+		stdout.println ("                      Only copies cutting earlier copies read base.");
+		stdout.println ("        mode server:  Stay resident and run diff, patch and compose jobs sent by ffdiff.Client.");
+		stdout.println ("                      Port and token are published in ~/.ffdiff/daemon.properties, readable by");
+		stdout.println ("                      its owner only: jobs run with the rights of the server user.");
+		stdout.println ("        target -:   Diff mode reads target from standard input in one pass.");
+		stdout.println ("                    Patch mode writes target to standard output, without file metadata.");
+		stdout.println ("        diff -:     Patch mode reads diff from standard input.");
+		stdout.println ("        base:       Repeat for older versions to copy blocks from, after the primary base.");
+		stdout.println ("                    Patch needs the same bases in the same order.");
+		stdout.println ("        targets:    Diff many targets against one base hashed once, into the diff directory.");
+		stdout.println ("                    Comma separated files, globs like build/*.img, or @file of one per line.");
+		stdout.println ("        chunking fixed:   Match target blocks at fixed block boundaries only (default).");
+		stdout.println ("        chunking rolling: Match target blocks at any byte offset. Slower, but survives shifted data.");
+		stdout.println ("        chunking cdc:     Cut base and target into content-defined chunks. Survives shifted data.");
+		stdout.println ("        chunksize: Content-defined chunk sizes. Default: block size x 1, x 4, x 32.");
+		stdout.println ("        threads:   Worker threads. Default: number of processors.");
+		stdout.println ("        hash strong: Match blocks by MD5 and SHA1 (default).");
+		stdout.println ("        hash fast:   Match blocks by xxHash64, confirmed byte by byte against base.");
+		stdout.println ("        compression none:    Store difference data as it is (default).");
+		stdout.println ("        compression deflate: Compress difference data by DEFLATE, in parallel.");
+		stdout.println ("        compression lzma:    Compress difference data by LZMA, in parallel. Smaller, slower.");
+		stdout.println ("        compression auto:    Choose per section by entropy and a trial of its first 64 KB.");
+		stdout.println ("        compression base:    DEFLATE with base bytes near the last copy as dictionary.");
+		stdout.println ("        verify off:    Patch without checking section checksums.");
+		stdout.println ("        verify sample: Check checksums of one section in 16, in the background.");
+		stdout.println ("        verify full:   Check checksums of all sections, in the background (default).");
+		stdout.println ("        cache:     Save base signatures in the directory, and reuse them while base is unchanged.");
+		stdout.println ("        cachesize: Total size of the cache directory, least recently used first out. Default: 4096.");
+		stdout.println ("        metrics:   Write time and bytes/s of every phase, and counters, as JSON to the file.");
+		stdout.println ("                   Also Flight Recorder events in category ffdiff, when recording.");
+		stdout.println ("        port:       Server loopback port. Default: any free port.");
+		stdout.println ("        jobs:       Server jobs run at the same time, others wait. Default: 2.");
+		stdout.println ("        memory:     Server memory budget of running jobs, by rough estimates. Default: 2048.");
+		stdout.println ("        indexcache: Server base indexes kept for later diffs, least recently used first out. Default: 1024.");
 	}
 
 	//------------------------------------------------------------------------
@@ -135,8 +357,13 @@ class ArgsReader {
 	}
 
 	//------------------------------------------------------------------------
+	/** Repeated for several bases, the first one as primary */
 	private Options argBase (final Options o, final DefaultKeyValue<String, String> pairOptionValue) {
-		o.pathBase = Paths.get (pairOptionValue.getValue ());
+		final Path p = Paths.get (pairOptionValue.getValue ());
+		if (o.pathBase == null) {
+			o.pathBase = p;
+		}
+		o.pathBases.add (p);
 		return o;
 	}
 
@@ -146,12 +373,240 @@ class ArgsReader {
 		return o;
 	}
 
+	//------------------------------------------------------------------------
+	/** Comma separated diff files, each one from the target of the one before it */
+	private Options argDiffs (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		o.pathDiffs = new ArrayList<Path> ();
+		try {
+			for (String item : StringUtils.split (value, ',')) {
+				o.pathDiffs.add (Paths.get (item));
+			}
+		} catch (InvalidPathException | NullPointerException e) {
+			throw new IllegalArgsException ("Illegal diffs: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	/** Comma separated target files, globs in file names like build/*.img, or @file listing one target per line */
+	private Options argTargets (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		final List<Path> targets = new ArrayList<Path> ();
+		try {
+			for (String item : StringUtils.split (value, ',')) {
+				if (item.startsWith ("@")) {
+					for (String line : Files.readAllLines (Paths.get (item.substring (1)))) {
+						if (! line.trim ().isEmpty ()) {
+							targets.add (Paths.get (line.trim ()));
+						}
+					}
+					continue;
+				}
+				final Path p = Paths.get (item);
+				if (StringUtils.containsAny (p.getFileName ().toString (), "*?[{")) {
+					final Path dir = p.getParent () == null ? Paths.get ("") : p.getParent ();
+					final List<Path> matched = new ArrayList<Path> ();
+					try (DirectoryStream<Path> list = Files.newDirectoryStream (dir, p.getFileName ().toString ())) {
+						list.forEach (matched::add);
+					}
+					Collections.sort (matched);
+					targets.addAll (matched);
+				} else {
+					targets.add (p);
+				}
+			}
+		} catch (IOException | InvalidPathException e) {
+			throw new IllegalArgsException ("Illegal targets: " + value + " (" + e.getMessage () + ")");
+		}
+		o.pathTargets = targets;
+		return o;
+	}
+
 	//------------------------------------------------------------------------
 	private Options argDiff (final Options o, final DefaultKeyValue<String, String> pairOptionValue) {
 		o.pathDiff = Paths.get (pairOptionValue.getValue ());
 		return o;
 	}
 
+	//------------------------------------------------------------------------
+	private Options argChunking (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.chunking = Chunkings.valueOf (value.toUpperCase ());
+		}
+		catch (IllegalArgumentException | NullPointerException e) {
+			throw new IllegalArgsException ("Illegal chunking: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argHash (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.hash = Hashes.valueOf (value.toUpperCase ());
+		}
+		catch (IllegalArgumentException | NullPointerException e) {
+			throw new IllegalArgsException ("Illegal hash: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argCompression (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.compression = Compressions.valueOf (value.toUpperCase ());
+		}
+		catch (IllegalArgumentException | NullPointerException e) {
+			throw new IllegalArgsException ("Illegal compression: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argChunkSize (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		final String[] sizes = StringUtils.split (value, ',');
+		try {
+			o.sizeChunkMin = Integer.parseInt (sizes[0].trim ());
+			o.sizeChunkAvg = Integer.parseInt (sizes[1].trim ());
+			o.sizeChunkMax = Integer.parseInt (sizes[2].trim ());
+		}
+		catch (NumberFormatException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgsException ("Illegal chunk sizes: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argVerify (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.verify = Verifications.valueOf (value.toUpperCase ());
+		}
+		catch (IllegalArgumentException | NullPointerException e) {
+			throw new IllegalArgsException ("Illegal verify: " + value);
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argCache (final Options o, final DefaultKeyValue<String, String> pairOptionValue) {
+		o.pathCache = Paths.get (pairOptionValue.getValue ());
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argMetrics (final Options o, final DefaultKeyValue<String, String> pairOptionValue) {
+		o.pathMetrics = Paths.get (pairOptionValue.getValue ());
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argPort (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.port = Integer.parseInt (value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal port: " + value);
+		}
+		if (o.port < 0 || o.port > 0xffff) {
+			throw new IllegalArgsException ("Port should be 0 to 65535");
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argJobs (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.jobs = Integer.parseInt (value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal jobs: " + value);
+		}
+		if (o.jobs < 1) {
+			throw new IllegalArgsException ("Jobs should be at least 1");
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argMemory (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.sizeMemory = Long.parseLong (value) * 1024 * 1024;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal memory: " + value);
+		}
+		if (o.sizeMemory < 1024 * 1024) {
+			throw new IllegalArgsException ("Memory should be at least 1");
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argIndexCache (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.sizeIndexCache = Long.parseLong (value) * 1024 * 1024;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal index cache: " + value);
+		}
+		if (o.sizeIndexCache < 0) {
+			throw new IllegalArgsException ("Index cache should be at least 0");
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argCacheSize (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.sizeCacheMax = Long.parseLong (value) * 1024 * 1024;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal cache size: " + value);
+		}
+		if (o.sizeCacheMax < 0) {
+			throw new IllegalArgsException ("Cache size should be at least 0");
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	private Options argThreads (final Options o, final DefaultKeyValue<String, String> pairOptionValue)
+	throws IllegalArgsException {
+		final String value = pairOptionValue.getValue ();
+		try {
+			o.threads = Integer.parseInt (value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgsException ("Illegal threads: " + value);
+		}
+		if (o.threads < 1) {
+			throw new IllegalArgsException ("Threads should be at least 1");
+		}
+		return o;
+	}
+
 	//------------------------------------------------------------------------
 	private String getOption (final Queue<String> args) {
 		if (args == null || args.isEmpty ()) {
@@ -185,13 +640,38 @@ class ArgsReader {
 	//------------------------------------------------------------------------
 	private void getFileSize (final Options o) throws IllegalArgsException {
 		Objects.requireNonNull (o);
-		File f = o.pathBase.toFile ();
-		if (! f.isFile () || ! f.canRead ()) {
-			throw new IllegalArgsException ("Cannot read base file " + o.pathBase);
+		File f = null;
+		for (Path p : o.pathBases) {
+			f = p.toFile ();
+			if (! f.isFile () || ! f.canRead ()) {
+				throw new IllegalArgsException ("Cannot read base file " + p);
+			}
+			o.sizeBases += f.length ();
 		}
-		o.sizeBase = f.length ();
+		o.sizeBase = o.pathBase.toFile ().length ();
 
-		if (o.mode == Modes.DIFF) {
+		if (o.mode == Modes.COMPOSE) {
+			for (Path p : o.pathDiffs) {
+				f = p.toFile ();
+				if (! f.isFile () || ! f.canRead ()) {
+					throw new IllegalArgsException ("Cannot read difference file " + p);
+				}
+				o.sizeDiff += f.length ();
+			}
+		} else if (o.pathTargets != null) {
+			// One block size for all targets, as they share the base signatures
+			for (Path p : o.pathTargets) {
+				f = p.toFile ();
+				if (! f.isFile () || ! f.canRead ()) {
+					throw new IllegalArgsException ("Cannot read target file " + p);
+				}
+				o.sizeTarget = Long.max (o.sizeTarget, f.length ());
+			}
+		} else if (o.mode == Modes.DIFF && isStream (o.pathTarget)) {
+			if (o.chunking == Chunkings.ROLLING) {
+				throw new IllegalArgsException ("Rolling chunking needs a target file, not standard input");
+			}
+		} else if (o.mode == Modes.DIFF) {
 			f = o.pathTarget.toFile ();
 			if (! f.isFile () || ! f.canRead ()) {
 				throw new IllegalArgsException ("Cannot read target file " + o.pathTarget);
@@ -199,7 +679,7 @@ class ArgsReader {
 			o.sizeTarget = f.length ();
 		}
 
-		if (o.mode == Modes.PATCH) {
+		if (o.mode == Modes.PATCH && ! isStream (o.pathDiff)) {
 			f = o.pathDiff.toFile ();
 			if (! f.isFile () || ! f.canRead ()) {
 				throw new IllegalArgsException ("Cannot read difference file " + o.pathDiff);
@@ -209,9 +689,16 @@ class ArgsReader {
 	}
 
 	//------------------------------------------------------------------------
-	private void calcBlockSize (final Options o) throws IllegalArgsException {
+	/** @return Whether the path stands for standard input or output; size of a stream is unknown, so 0 */
+	static boolean isStream (final Path p) {
+		return p != null && p.toString ().equals (STREAM);
+	}
+
+	//------------------------------------------------------------------------
+	void calcBlockSize (final Options o) throws IllegalArgsException {
 		Objects.requireNonNull (o);
-		long[] size = new long [] { o.sizeBase, o.sizeTarget};
+		// All bases in one index: blocks of them all count
+		long[] size = new long [] { o.sizeBases, o.sizeTarget};
 		int s = MIN_BLOCK_SIZE;
 		for (boolean bigger = true ; bigger ;) {
 			bigger = false;
@@ -226,4 +713,25 @@ class ArgsReader {
 		o.sizeBlock = s;
 	}
 
+	//------------------------------------------------------------------------
+	void calcChunkSize (final Options o) throws IllegalArgsException {
+		Objects.requireNonNull (o);
+		if (o.chunking != Chunkings.CDC) {
+			return;
+		}
+		if (o.sizeChunkMin == 0 && o.sizeChunkAvg == 0 && o.sizeChunkMax == 0) {
+			o.sizeChunkMin = o.sizeBlock;
+			o.sizeChunkAvg = o.sizeBlock * 4;
+			o.sizeChunkMax = o.sizeBlock * 32;
+		}
+		if (o.sizeChunkMin < o.sizeBlock) {
+			throw new IllegalArgsException (String.format
+				("Minimum chunk size should be at least the block size %,d", o.sizeBlock));
+		}
+		if (o.sizeChunkMin > o.sizeChunkAvg || o.sizeChunkAvg > o.sizeChunkMax || o.sizeChunkMax > MAX_CHUNK_SIZE) {
+			throw new IllegalArgsException (String.format
+				("Chunk sizes should be min <= avg <= max <= %,d", MAX_CHUNK_SIZE));
+		}
+	}
+
 }
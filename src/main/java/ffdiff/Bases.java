@@ -0,0 +1,96 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Base files mapped one after the other into one offset space, so one block index covers all of them.
+ * Base 0 is the primary base of the diff header; its offsets are the same in both spaces.
+ * Slices never run from one base into the next.
+ */
+class Bases implements Closeable {
+
+	//------------------------------------------------------------------------
+	private final MappedFile[] files;
+	/** Offset of every base, then the total size */
+	private final long[] starts;
+
+	/** @return Total size of all bases */
+	public long size () {
+		return starts[files.length];
+	}
+
+	public int count () {
+		return files.length;
+	}
+
+	public MappedFile file (final int id) {
+		return files[id];
+	}
+
+	public long start (final int id) {
+		return starts[id];
+	}
+
+	//------------------------------------------------------------------------
+	Bases (final List<Path> paths) throws IOException {
+		files = new MappedFile [paths.size ()];
+		starts = new long [paths.size () + 1];
+		try {
+			for (int i = 0 ; i < files.length ; i++) {
+				files[i] = new MappedFile (paths.get (i));
+				starts[i + 1] = starts[i] + files[i].size ();
+			}
+		} catch (IOException e) {
+			close ();
+			throw e;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Id of the base holding offset */
+	public int id (final long offset) {
+		final int i = Arrays.binarySearch (starts, offset);
+		// Empty bases share their start with the next one: take the last of equal starts
+		int id = i >= 0 ? i : -i - 2;
+		while (id + 1 < files.length && starts[id + 1] == offset) {
+			id++;
+		}
+		return Integer.min (id, files.length - 1);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Start of the base holding offset */
+	public long startOf (final long offset) {
+		return starts[id (offset)];
+	}
+
+	//------------------------------------------------------------------------
+	/** @return End of the base holding offset, the limit of any slice from there */
+	public long endOf (final long offset) {
+		return starts[id (offset) + 1];
+	}
+
+	//------------------------------------------------------------------------
+	/** @return [offset, offset + length) of the base holding offset, position 0, limit length */
+	public ByteBuffer slice (final long offset, final int length) throws IOException {
+		final int id = id (offset);
+		if (offset + length > starts[id + 1]) {
+			throw FormatUs.formatIOException ("Slice [%,d, +%,d) out of base %d [%,d, %,d)",
+				offset, length, id, starts[id], starts[id + 1]);
+		}
+		return files[id].slice (offset - starts[id], length);
+	}
+
+	//------------------------------------------------------------------------
+	@Override public void close () throws IOException {
+		for (MappedFile f : files) {
+			if (f != null) {
+				f.close ();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Many targets diffed against one base: base is hashed once, or mapped from the cache,
+ * and its signatures are shared read only by the diffs of all targets, run concurrently.
+ * Each diff goes into the diff directory as {target file name}.ffdiff.
+ */
+class Batch {
+
+	//------------------------------------------------------------------------
+	private static final PrintStream stdout = System.out;
+	private static final String EXT = ".ffdiff";
+
+	//------------------------------------------------------------------------
+	/** Outcome of one target */
+	private static class Result {
+		final Path target, diff;
+		long sizeTarget, sizeDiff, millis;
+		/** null when diffed */
+		String error = null;
+
+		Result (final Path target, final Path diff) {
+			this.target = target;
+			this.diff = diff;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private final Options options;
+
+	//------------------------------------------------------------------------
+	Batch (final Options o) {
+		Objects.requireNonNull (o.pathTargets);
+		options = o;
+	}
+
+	//------------------------------------------------------------------------
+	/** Diff all targets, going on past failed ones, then throw if any has failed */
+	public void run () throws IOException, InterruptedException {
+		final long start = System.currentTimeMillis ();
+		final SignatureCache.Signatures signatures = new Diff (options).indexBase ();
+		final long millisBase = System.currentTimeMillis () - start;
+		Files.createDirectories (options.pathDiff);
+
+		// Threads split between concurrent diffs, each with a pool of its own
+		final int jobs = Integer.min (options.threads, options.pathTargets.size ());
+		final int threadsPerJob = Integer.max (1, options.threads / jobs);
+		final ExecutorService pool = Executors.newFixedThreadPool (jobs);
+		final List<Result> results = new ArrayList<Result> ();
+		final List<Future<?>> futures = new ArrayList<Future<?>> ();
+		try {
+			for (Path target : options.pathTargets) {
+				final Result result = new Result (target, options.pathDiff.resolve (target.getFileName () + EXT));
+				results.add (result);
+				futures.add (pool.submit (() -> diff (signatures, threadsPerJob, result)));
+			}
+			for (Future<?> f : futures) {
+				try {
+					f.get ();
+				} catch (ExecutionException e) {
+					throw new IOException (e.getCause ());
+				}
+			}
+		} finally {
+			pool.shutdownNow ();
+		}
+		summary (results, millisBase, System.currentTimeMillis () - start);
+	}
+
+	//------------------------------------------------------------------------
+	private void diff (final SignatureCache.Signatures signatures, final int threads, final Result result) {
+		final Options o = options.copy ();
+		o.pathTargets = null;
+		o.pathTarget = result.target;
+		o.pathDiff = result.diff;
+		o.sizeTarget = result.target.toFile ().length ();
+		o.threads = threads;
+		// Debug files of one target would be overwritten by the others
+		o.verbose = false;
+		result.sizeTarget = o.sizeTarget;
+		final long start = System.currentTimeMillis ();
+		try {
+			new Diff (o, signatures).run ();
+			result.sizeDiff = Files.size (result.diff);
+		} catch (Exception e) {
+			result.error = ExceptionUtils.getMessage (e);
+		}
+		result.millis = System.currentTimeMillis () - start;
+	}
+
+	//------------------------------------------------------------------------
+	private void summary (final List<Result> results, final long millisBase, final long millis) throws IOException {
+		long sizeTarget = 0, sizeDiff = 0;
+		int failed = 0;
+		stdout.printf ("%-32s %16s %16s %7s %9s%n", "target", "size", "diff", "ratio", "seconds");
+		for (Result r : results) {
+			if (r.error != null) {
+				stdout.printf ("%-32s %,16d %16s %7s %,9.1f  %s%n", r.target.getFileName (), r.sizeTarget,
+					"-", "-", r.millis / 1000.0, r.error);
+				failed++;
+				continue;
+			}
+			stdout.printf ("%-32s %,16d %,16d %6.1f%% %,9.1f%n", r.target.getFileName (), r.sizeTarget, r.sizeDiff,
+				ratio (r.sizeDiff, r.sizeTarget), r.millis / 1000.0);
+			sizeTarget += r.sizeTarget;
+			sizeDiff += r.sizeDiff;
+		}
+		stdout.println ("----------");
+		stdout.printf ("%-32s %,16d %,16d %6.1f%% %,9.1f%n", String.format ("total: %d diffed", results.size () - failed),
+			sizeTarget, sizeDiff, ratio (sizeDiff, sizeTarget), millis / 1000.0);
+		stdout.printf ("base indexed in %,.1f seconds%n", millisBase / 1000.0);
+		if (failed > 0) {
+			throw FormatUs.formatIOException ("%d of %d targets failed", failed, results.size ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private static double ratio (final long part, final long whole) {
+		return whole == 0 ? 0 : part * 100.0 / whole;
+	}
+
+}
@@ -0,0 +1,172 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Block fingerprint to offset index: open addressing hash table in one off-heap buffer, no per-block objects.
+ *
+ * <pre>
+ * Slot (32 bytes): MD5 first 8 bytes | SHA1 first 8 bytes | length (4) | reserved (4) | offset (8)
+ * Load factor 3/8 .. 3/4, so 43 .. 86 bytes per block, 1 GB for 16M blocks at most.
+ * </pre>
+ */
+public class BlockIndex {
+
+	//------------------------------------------------------------------------
+	public static final int SLOT_BYTES = 32;
+	private static final int KEY1 = 0, KEY2 = 8, LENGTH = 16, OFFSET = 24;
+	private static final int MIN_SLOTS = 1024, MAX_SLOTS = 1 << 25;
+	public static final long NOT_FOUND = -1;
+
+	//------------------------------------------------------------------------
+	private ByteBuffer slots;
+	private int mask, size = 0;
+
+	public int size () {
+		return size;
+	}
+	public int capacity () {
+		return mask + 1;
+	}
+
+	//------------------------------------------------------------------------
+	/** @param expected Expected block count */
+	public BlockIndex (final long expected) {
+		allocate (slots (expected));
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Bytes of an index of expected blocks, before it grows */
+	public static long bytes (final long expected) {
+		return (long) slots (expected) * SLOT_BYTES;
+	}
+
+	//------------------------------------------------------------------------
+	private static int slots (final long expected) {
+		long n = MIN_SLOTS;
+		while (n * 3 / 4 < expected && n < MAX_SLOTS) {
+			n *= 2;
+		}
+		return (int) n;
+	}
+
+	//------------------------------------------------------------------------
+	/** Index over slots written by {@link #write}, read-only */
+	private BlockIndex (final ByteBuffer slots, final int size) {
+		this.slots = slots.order (ByteOrder.nativeOrder ());
+		this.mask = slots.capacity () / SLOT_BYTES - 1;
+		this.size = size;
+	}
+
+	//------------------------------------------------------------------------
+	/** Map an index written by {@link #write} at position of in, on a machine of the same byte order */
+	public static BlockIndex map (final FileChannel in, final long position, final int capacity, final int size)
+	throws IOException {
+		if (Integer.bitCount (capacity) != 1 || capacity < MIN_SLOTS || capacity > MAX_SLOTS || size >= capacity) {
+			throw FormatUs.formatIOException ("Wrong block index capacity %,d for %,d blocks", capacity, size);
+		}
+		return new BlockIndex (in.map (FileChannel.MapMode.READ_ONLY, position, (long) capacity * SLOT_BYTES), size);
+	}
+
+	//------------------------------------------------------------------------
+	/** Write all slots as they are, in native byte order */
+	public void write (final WritableByteChannel out) throws IOException {
+		final ByteBuffer b = slots.duplicate ();
+		b.clear ();
+		while (b.hasRemaining ()) {
+			out.write (b);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void allocate (final int count) {
+		slots = ByteBuffer.allocateDirect (count * SLOT_BYTES).order (ByteOrder.nativeOrder ());
+		mask = count - 1;
+		size = 0;
+	}
+
+	//------------------------------------------------------------------------
+	/** Put or replace the offset of a block. */
+	public void put (final UniHash hash, final long offset) {
+		put (hash.getKey1 (), hash.getKey2 (), hash.getLength (), offset);
+	}
+
+	//------------------------------------------------------------------------
+	public void put (final long key1, final long key2, final int length, final long offset) {
+		if ((size + 1) * 4L > capacity () * 3L) {
+			grow ();
+		}
+		int i = find (key1, key2, length);
+		final int p = i * SLOT_BYTES;
+		if (slots.getInt (p + LENGTH) == 0) {
+			slots.putLong (p + KEY1, key1);
+			slots.putLong (p + KEY2, key2);
+			slots.putInt (p + LENGTH, length);
+			size++;
+		}
+		slots.putLong (p + OFFSET, offset);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Offset of the block, or {@link #NOT_FOUND} */
+	public long get (final UniHash hash) {
+		return get (hash.getKey1 (), hash.getKey2 (), hash.getLength ());
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Offset of the block, or {@link #NOT_FOUND} */
+	public long get (final long key1, final long key2, final int length) {
+		final int p = find (key1, key2, length) * SLOT_BYTES;
+		return slots.getInt (p + LENGTH) == 0 ? NOT_FOUND : slots.getLong (p + OFFSET);
+	}
+
+	//------------------------------------------------------------------------
+	public boolean contains (final UniHash hash) {
+		return get (hash) != NOT_FOUND;
+	}
+
+	//------------------------------------------------------------------------
+	/** Linear probing. @return Slot of the key, or the empty slot where it belongs. Blocks are never empty. */
+	private int find (final long key1, final long key2, final int length) {
+		for (int i = (int) (key1 ^ (key1 >>> 32)) & mask ;; i = (i + 1) & mask) {
+			final int p = i * SLOT_BYTES, l = slots.getInt (p + LENGTH);
+			if (l == 0 || (l == length && slots.getLong (p + KEY1) == key1 && slots.getLong (p + KEY2) == key2)) {
+				return i;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void grow () {
+		if (capacity () >= MAX_SLOTS) {
+			throw new IllegalStateException ("Block index is full: " + size);
+		}
+		final ByteBuffer old = slots;
+		allocate (capacity () * 2);
+		for (int p = 0 ; p < old.capacity () ; p += SLOT_BYTES) {
+			final int length = old.getInt (p + LENGTH);
+			if (length != 0) {
+				put (old.getLong (p + KEY1), old.getLong (p + KEY2), length, old.getLong (p + OFFSET));
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	public interface Visitor {
+		void visit (long key1, long key2, int length, long offset);
+	}
+
+	//------------------------------------------------------------------------
+	/** Visit all blocks in slot order */
+	public void forEach (final Visitor visitor) {
+		for (int p = 0 ; p < slots.capacity () ; p += SLOT_BYTES) {
+			final int length = slots.getInt (p + LENGTH);
+			if (length != 0) {
+				visitor.visit (slots.getLong (p + KEY1), slots.getLong (p + KEY2), length, slots.getLong (p + OFFSET));
+			}
+		}
+	}
+
+}
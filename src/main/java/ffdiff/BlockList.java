@@ -0,0 +1,61 @@
+package ffdiff;
+
+import java.util.*;
+
+/**
+ * Target blocks in offset order, in flat primitive arrays: 16 bytes per block, no per-block objects.
+ * Block offsets are implicit: every block starts where the previous one ends.
+ */
+public class BlockList {
+
+	//------------------------------------------------------------------------
+	private static final int INITIAL_CAPACITY = 1024;
+
+	//------------------------------------------------------------------------
+	private int size = 0;
+	private int[] lengths = new int [INITIAL_CAPACITY];
+	/** Offset of the equal base block, or {@link BlockIndex#NOT_FOUND} */
+	private long[] baseOffsets = new long [INITIAL_CAPACITY];
+	/** First 4 bytes of MD5 */
+	private int[] checksums = new int [INITIAL_CAPACITY];
+
+	public int size () {
+		return size;
+	}
+	public int getLength (final int i) {
+		return lengths[i];
+	}
+	public long getBaseOffset (final int i) {
+		return baseOffsets[i];
+	}
+	public int getChecksum (final int i) {
+		return checksums[i];
+	}
+
+	//------------------------------------------------------------------------
+	public void clear () {
+		size = 0;
+	}
+
+	//------------------------------------------------------------------------
+	public void add (final int length, final long baseOffset, final int checksum) {
+		if (size == lengths.length) {
+			final int capacity = size + (size >> 1);
+			lengths     = Arrays.copyOf (lengths,     capacity);
+			baseOffsets = Arrays.copyOf (baseOffsets, capacity);
+			checksums   = Arrays.copyOf (checksums,   capacity);
+		}
+		lengths[size]     = length;
+		baseOffsets[size] = baseOffset;
+		checksums[size]   = checksum;
+		size++;
+	}
+
+	//------------------------------------------------------------------------
+	public void addAll (final BlockList b) {
+		for (int i = 0 ; i < b.size ; i++) {
+			add (b.lengths[i], b.baseOffsets[i], b.checksums[i]);
+		}
+	}
+
+}
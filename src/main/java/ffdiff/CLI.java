@@ -1,11 +1,15 @@
 package ffdiff;
 
 import java.io.*;
-import java.nio.file.Paths;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.Arrays;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
+import ffdiff.ArgsReader.Chunkings;
 import ffdiff.ArgsReader.IllegalArgsException;
 import ffdiff.ArgsReader.Modes;
+import ffdiff.ArgsReader.Options;
 
 /** Command-line Interface */
 public class CLI {
@@ -13,17 +17,30 @@ public class CLI {
 	//------------------------------------------------------------------------
 	// Member constants
 	private static final PrintStream stdout = System.out, stderr = System.err;
+	private static final OpenOption[] WRITE = new OpenOption[]
+		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE };
 
 	//------------------------------------------------------------------------
 	public static void main (String[] args) {
-		banner ();
+		// Standard input or output may carry data: messages go to stderr then
+		final PrintStream console = Arrays.asList (args).contains (ArgsReader.STREAM) ? stderr : stdout;
+		banner (console);
 		try {
 			ArgsReader.Options options = new ArgsReader().read (args);
-			showOptions (options);
-			if (options.mode == Modes.DIFF) {
-				new Diff (options).run ();
+			if (options == null) {
+				return;
+			}
+			showOptions (console, options);
+			if (options.pathTargets != null) {
+				new Batch (options).run ();
+			} else if (options.mode == Modes.DIFF) {
+				diff (options);
 			} else if (options.mode == Modes.PATCH) {
-				new Patch (options).run ();
+				patch (console, options);
+			} else if (options.mode == Modes.COMPOSE) {
+				new Compose (options).run ();
+			} else if (options.mode == Modes.SERVER) {
+				new Server (options).run ();
 			}
 
 		} catch (IllegalArgsException e) {
@@ -34,30 +51,94 @@ public class CLI {
 	}
 
 	//------------------------------------------------------------------------
-	private static void banner () {
-		stdout.println ("Fast File DIFFerence version 1.0.190925");
-		stdout.println ("Written by CHEN Qingcan, Mid Autumn 2019, Foshan China");
-		stdout.println ("----------");
+	/** Diff by the engine of the options, the target read from standard input in one pass or a file */
+	private static void diff (final Options options) throws IOException, InterruptedException {
+		try (DiffEngine engine = new DiffEngine (options)) {
+			if (ArgsReader.isStream (options.pathTarget)) {
+				try (ReadableByteChannel in = Channels.newChannel (System.in);
+					FileChannel out = FileChannel.open (options.pathDiff, WRITE)) {
+					engine.diff (options.pathBases, in, out);
+				}
+			} else {
+				engine.diff (options.pathBases, options.pathTarget, options.pathDiff);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Patch by the engine of the options, the diff and the target files or standard input and output */
+	private static void patch (final PrintStream console, final Options options) throws IOException, InterruptedException {
+		final boolean streamDiff = ArgsReader.isStream (options.pathDiff),
+			streamTarget = ArgsReader.isStream (options.pathTarget);
+		try (PatchEngine engine = new PatchEngine (options, console)) {
+			if (streamTarget) {
+				// Standard output as a FileChannel: copies from base go by transferTo
+				try (ReadableByteChannel in = streamDiff ?
+					Channels.newChannel (System.in) : FileChannel.open (options.pathDiff, StandardOpenOption.READ);
+					WritableByteChannel out = new FileOutputStream (FileDescriptor.out).getChannel ()) {
+					engine.patch (options.pathBases, in, out);
+				}
+			} else if (streamDiff) {
+				// Standard input as a plain channel: DiffReader reads a FileChannel by position
+				try (ReadableByteChannel in = Channels.newChannel (System.in)) {
+					engine.patch (options.pathBases, in, options.pathTarget);
+				}
+			} else {
+				engine.patch (options.pathBases, options.pathDiff, options.pathTarget);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private static void banner (final PrintStream console) {
+		console.println ("Fast File DIFFerence version 1.0.190925");
+		console.println ("Written by CHEN Qingcan, Mid Autumn 2019, Foshan China");
+		console.println ("----------");
 	}
 
 	//------------------------------------------------------------------------
-	private static void showOptions (final ArgsReader.Options options) {
+	static void showOptions (final PrintStream console, final ArgsReader.Options options) {
 		assert options != null;
-		stdout.println ("Fast File DIFFerence version 1.0.190925");
-		stdout.println ("Written by CHEN Qingcan, Mid Autumn 2019, Foshan China");
-		stdout.println ("----------");
-		stdout.printf ("mode:  %5s | base: %s | target: %s | diff: %s%n",
+		console.println ("Fast File DIFFerence version 1.0.190925");
+		console.println ("Written by CHEN Qingcan, Mid Autumn 2019, Foshan China");
+		console.println ("----------");
+		if (options.mode == Modes.SERVER) {
+			console.printf ("mode: %s | port: %d | jobs: %d | threads: %d | memory: %,d MB | index cache: %,d MB%n",
+				options.mode, options.port, options.jobs, options.threads,
+				options.sizeMemory / 1024 / 1024, options.sizeIndexCache / 1024 / 1024);
+			console.println ("----------");
+			return;
+		}
+		console.printf ("mode:  %5s | base: %s | target: %s | diff: %s%n",
 			options.mode, options.pathBase, options.pathTarget, options.pathDiff);
+		if (options.pathBases.size () > 1) {
+			console.printf ("bases: %s | size: %,d%n", options.pathBases, options.sizeBases);
+		}
+		if (options.pathTargets != null) {
+			console.printf ("targets: %d (block size for the largest)%n", options.pathTargets.size ());
+		}
 		if (options.mode == Modes.DIFF) {
-			stdout.printf ("block: %,5d | base: %,d | target: %,d%n",
-				options.sizeBlock, options.sizeBase, options.sizeTarget);
+			console.printf ("block: %,5d | base: %,d | target: %,d | chunking: %s | threads: %d | hash: %s%n",
+				options.sizeBlock, options.sizeBase, options.sizeTarget, options.chunking, options.threads, options.hash);
+			console.printf ("compression: %s%n", options.compression);
+			if (options.pathCache != null) {
+				console.printf ("cache: %s (%,d MB at most)%n", options.pathCache, options.sizeCacheMax / 1024 / 1024);
+			}
+			if (options.chunking == Chunkings.CDC) {
+				console.printf ("chunk: %,d / %,d / %,d (min / avg / max)%n",
+					options.sizeChunkMin, options.sizeChunkAvg, options.sizeChunkMax);
+			}
+		} else if (options.mode == Modes.COMPOSE) {
+			console.printf ("             | base: %,d | diffs: %s | size: %,d | compression: %s%n",
+				options.sizeBase, options.pathDiffs, options.sizeDiff, options.compression);
 		} else if (options.mode == Modes.PATCH) {
-			stdout.printf ("             | base: %,d | diff: %,d%n", options.sizeBase, options.sizeDiff);
+			console.printf ("             | base: %,d | diff: %,d | threads: %d | verify: %s%n",
+				options.sizeBase, options.sizeDiff, options.threads, options.verify);
 		}
 		if (options.verbose) {
-			stdout.printf ("debug: %s (*.debug)%n", Paths.get("").toAbsolutePath ());
+			console.printf ("debug: %s (*.debug)%n", Paths.get("").toAbsolutePath ());
 		}
-		stdout.println ("----------");
+		console.println ("----------");
 	}
 
 }
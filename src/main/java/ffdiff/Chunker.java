@@ -0,0 +1,79 @@
+package ffdiff;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Content-defined chunking (FastCDC): chunk boundaries are picked by a gear hash of the content,
+ * so they re-synchronize right after an insertion or deletion.
+ */
+public class Chunker {
+
+	//------------------------------------------------------------------------
+	private static final long GEAR_SEED = 0xffd1ff00L;
+	private static final long[] GEAR = new long [256];
+	static {
+		SplittableRandom random = new SplittableRandom (GEAR_SEED);
+		for (int i = 0 ; i < GEAR.length ; i++) {
+			GEAR[i] = random.nextLong ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private final int sizeMin, sizeAvg, sizeMax;
+	/** Normalized chunking: stricter mask before the average size, looser after it */
+	private final long maskStrict, maskLoose;
+
+	public int getMaxSize () {
+		return sizeMax;
+	}
+
+	//------------------------------------------------------------------------
+	public Chunker (final int sizeMin, final int sizeAvg, final int sizeMax) {
+		if (sizeMin <= 0 || sizeMin > sizeAvg || sizeAvg > sizeMax) {
+			throw new IllegalArgumentException (String.format
+				("Chunk sizes should be 0 < min <= avg <= max (%d, %d, %d)", sizeMin, sizeAvg, sizeMax));
+		}
+		this.sizeMin = sizeMin;
+		this.sizeAvg = sizeAvg;
+		this.sizeMax = sizeMax;
+		final int bits = Integer.SIZE - 1 - Integer.numberOfLeadingZeros (sizeAvg);
+		maskStrict = highBits (bits + 1);
+		maskLoose  = highBits (Integer.max (bits - 1, 1));
+	}
+
+	//------------------------------------------------------------------------
+	/** Mask of the highest bits of the gear hash, which depend on the last 64 bytes */
+	private static long highBits (final int count) {
+		return -1L << (Long.SIZE - count);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Length of the next chunk starting at buffer position.
+	 * @param raw Caller should provide at least the maximum chunk size, unless end of data is reached.
+	 */
+	public int next (final ByteBuffer raw) {
+		final int from = raw.position (), length = raw.remaining ();
+		if (length <= sizeMin) {
+			return length;
+		}
+		final int n = Integer.min (length, sizeMax), normal = Integer.min (n, sizeAvg);
+		long fingerprint = 0;
+		int i = sizeMin;
+		for (; i < normal ; i++) {
+			fingerprint = (fingerprint << 1) + GEAR[raw.get (from + i) & 0xff];
+			if ((fingerprint & maskStrict) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < n ; i++) {
+			fingerprint = (fingerprint << 1) + GEAR[raw.get (from + i) & 0xff];
+			if ((fingerprint & maskLoose) == 0) {
+				return i + 1;
+			}
+		}
+		return n;
+	}
+
+}
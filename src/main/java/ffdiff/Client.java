@@ -0,0 +1,101 @@
+package ffdiff;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Command line sending its job to the running {@link Server}, or running it in this process when there is none.
+ * Streams, batches, help and debug always run here: their data or files belong to this process.
+ */
+public class Client {
+
+	//------------------------------------------------------------------------
+	private static final PrintStream stdout = System.out, stderr = System.err;
+	/** Options whose values are paths, resolved here as the server has another working directory */
+	private static final Set<String> PATHS = new HashSet<String> (Arrays.asList ("base", "target", "diff", "diffs", "cache", "metrics"));
+	private static final Set<String> LOCAL = new HashSet<String> (Arrays.asList ("targets", "help", "verbose", "debug"));
+	private static final int TIMEOUT_CONNECT = 1000;
+
+	//------------------------------------------------------------------------
+	public static void main (String[] args) {
+		final Properties daemon = daemon (args);
+		if (daemon == null) {
+			CLI.main (args);
+			return;
+		}
+		final Socket socket = new Socket ();
+		try {
+			socket.connect (new InetSocketAddress (InetAddress.getLoopbackAddress (),
+				Integer.parseInt (daemon.getProperty (Server.PORT))), TIMEOUT_CONNECT);
+		} catch (IOException | IllegalArgumentException e) {
+			// Daemon gone without removing its file
+			CLI.main (args);
+			return;
+		}
+		try (Socket s = socket;
+			DataOutputStream out = new DataOutputStream (new BufferedOutputStream (s.getOutputStream ()));
+			DataInputStream in = new DataInputStream (new BufferedInputStream (s.getInputStream ()))) {
+			final String[] job = resolve (args);
+			out.writeUTF (daemon.getProperty (Server.TOKEN, ""));
+			out.writeInt (job.length);
+			for (String arg : job) {
+				out.writeUTF (arg);
+			}
+			out.flush ();
+			final boolean done = in.readByte () == 0;
+			final byte[] messages = new byte [in.readInt ()];
+			in.readFully (messages);
+			(done ? stdout : stderr).print (new String (messages, StandardCharsets.UTF_8));
+			if (! done) {
+				System.exit (1);
+			}
+		} catch (IOException | InvalidPathException e) {
+			stderr.println ("ffdiff daemon: " + e.getMessage ());
+			System.exit (1);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Port and token of the running daemon, or null when the job runs here */
+	private static Properties daemon (final String[] args) {
+		if (args.length == 0 || ! Files.isReadable (Server.DAEMON_FILE)) {
+			return null;
+		}
+		for (int i = 0 ; i < args.length ; i++) {
+			final String option = StringUtils.removeStart (StringUtils.removeStart (args[i], "-"), "-");
+			if (args[i].equals (ArgsReader.STREAM) || LOCAL.contains (option)
+				|| option.equals ("mode") && i + 1 < args.length && args[i + 1].equalsIgnoreCase ("server")) {
+				return null;
+			}
+		}
+		final Properties p = new Properties ();
+		try (InputStream in = Files.newInputStream (Server.DAEMON_FILE)) {
+			p.load (in);
+		} catch (IOException e) {
+			return null;
+		}
+		return p.getProperty (Server.PORT) == null ? null : p;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Arguments with path values made absolute */
+	private static String[] resolve (final String[] args) {
+		final String[] job = args.clone ();
+		for (int i = 0 ; i + 1 < job.length ; i++) {
+			if (job[i].startsWith ("-") && PATHS.contains (StringUtils.removeStart (job[i].substring (1), "-"))) {
+				final List<String> paths = new ArrayList<String> ();
+				for (String item : StringUtils.split (job[++i], ',')) {
+					paths.add (Paths.get (item).toAbsolutePath ().toString ());
+				}
+				job[i] = String.join (",", paths);
+			}
+		}
+		return job;
+	}
+
+}
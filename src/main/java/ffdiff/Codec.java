@@ -0,0 +1,25 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression algorithm of DIFF sections, identified by the Compression Algorithm field.
+ * Implementations are found by {@link Codecs}, built in or through {@link java.util.ServiceLoader}.
+ * They are shared by all threads, so keep no state outside of thread locals.
+ */
+public interface Codec {
+
+	//------------------------------------------------------------------------
+	/** @return Compression Algorithm field value */
+	char getId ();
+
+	//------------------------------------------------------------------------
+	/** Compress buffer remaining bytes into out, position unchanged */
+	void compress (ByteBuffer raw, OutputStream out) throws IOException;
+
+	//------------------------------------------------------------------------
+	/** @return Original data stream, reading cooked data from in. Closing it must not close in. */
+	InputStream decompress (InputStream cooked) throws IOException;
+
+}
@@ -0,0 +1,209 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.*;
+import org.tukaani.xz.*;
+
+/**
+ * Codec registry: 'N' store, 'D' DEFLATE, '7' LZMA, 'B' DEFLATE with base as dictionary,
+ * and any {@link Codec} registered by ServiceLoader.
+ * Also the adaptive codec choice for one DIFF section.
+ */
+public class Codecs {
+
+	//------------------------------------------------------------------------
+	public static final char NONE = 'N', DEFLATE = 'D', LZMA = '7', BASE = 'B';
+	/** DEFLATE window: no use for a longer dictionary */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+	/** Input buffers of the compressing threads */
+	private static final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial (() -> new byte [64 * 1024]);
+	private static final Map<Character, Codec> registry = new HashMap<Character, Codec> ();
+
+	static {
+		register (new StoreCodec ());
+		register (new DeflateCodec ());
+		register (new LZMACodec ());
+		register (new BaseCodec ());
+		for (Codec c : ServiceLoader.load (Codec.class)) {
+			register (c);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private static void register (final Codec c) {
+		registry.put (c.getId (), c);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Codec of the Compression Algorithm field value, or null if unknown */
+	public static Codec get (final char id) {
+		return registry.get (id);
+	}
+
+	//------------------------------------------------------------------------
+	/** Write buffer remaining bytes to out through a reused array, position unchanged */
+	static void write (final ByteBuffer raw, final OutputStream out) throws IOException {
+		final byte[] chunk = chunks.get ();
+		for (ByteBuffer in = raw.duplicate () ; in.hasRemaining () ;) {
+			final int n = Integer.min (chunk.length, in.remaining ());
+			in.get (chunk, 0, n);
+			out.write (chunk, 0, n);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** 'N': original data as it is */
+	private static class StoreCodec implements Codec {
+		@Override public char getId () {
+			return NONE;
+		}
+		@Override public void compress (final ByteBuffer raw, final OutputStream out) throws IOException {
+			write (raw, out);
+		}
+		@Override public InputStream decompress (final InputStream cooked) {
+			return new CloseShieldInputStream (cooked);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** 'D': raw DEFLATE (RFC 1951) stream, engines reused per thread */
+	private static class DeflateCodec implements Codec {
+		private static final ThreadLocal<Deflater> deflaters =
+			ThreadLocal.withInitial (() -> new Deflater (Deflater.DEFAULT_COMPRESSION, true));
+		private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial (() -> new Inflater (true));
+
+		@Override public char getId () {
+			return DEFLATE;
+		}
+		@Override public void compress (final ByteBuffer raw, final OutputStream out) throws IOException {
+			final Deflater deflater = deflaters.get ();
+			deflater.reset ();
+			// Given deflater is not ended by close, given out is closed but may not be, so finish only
+			final DeflaterOutputStream deflate = new DeflaterOutputStream (out, deflater, chunks.get ().length);
+			write (raw, deflate);
+			deflate.finish ();
+		}
+		@Override public InputStream decompress (final InputStream cooked) {
+			final Inflater inflater = inflaters.get ();
+			inflater.reset ();
+			return new InflaterInputStream (new CloseShieldInputStream (cooked), inflater, chunks.get ().length);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** 'B': raw DEFLATE stream with a preset dictionary, engines reused per thread */
+	private static class BaseCodec implements DictionaryCodec {
+		private static final ThreadLocal<byte[]> dictionaries =
+			ThreadLocal.withInitial (() -> new byte [MAX_DICTIONARY_SIZE]);
+
+		@Override public char getId () {
+			return BASE;
+		}
+		@Override public void compress (final ByteBuffer raw, final OutputStream out) throws IOException {
+			compress (raw, ByteBuffer.allocate (0), out);
+		}
+		@Override public void compress (final ByteBuffer raw, final ByteBuffer dictionary, final OutputStream out)
+		throws IOException {
+			final Deflater deflater = DeflateCodec.deflaters.get ();
+			final byte[] d = dictionaries.get ();
+			final int length = Integer.min (d.length, dictionary.remaining ());
+			dictionary.duplicate ().get (d, 0, length);
+			deflater.reset ();
+			deflater.setDictionary (d, 0, length);
+			final DeflaterOutputStream deflate = new DeflaterOutputStream (out, deflater, chunks.get ().length);
+			write (raw, deflate);
+			deflate.finish ();
+		}
+		@Override public InputStream decompress (final InputStream cooked) {
+			return decompress (cooked, new byte [0]);
+		}
+		@Override public InputStream decompress (final InputStream cooked, final byte[] dictionary) {
+			final Inflater inflater = DeflateCodec.inflaters.get ();
+			inflater.reset ();
+			inflater.setDictionary (dictionary);
+			return new InflaterInputStream (new CloseShieldInputStream (cooked), inflater, chunks.get ().length);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** '7': LZMA stream (.lzma, 13 bytes header with the original size, no end marker) */
+	private static class LZMACodec implements Codec {
+		/**
+		 * Decoder memory limit in KiB: dictionaries are no larger than their section, at most MAX_SLICE,
+		 * so a header asking for more is a corrupt or hostile diff, not a reason to allocate gigabytes.
+		 */
+		private static final int MEMORY_LIMIT = LZMAInputStream.getMemoryUsage (MappedFile.MAX_SLICE,
+			LZMA2Options.LC_DEFAULT, LZMA2Options.LP_DEFAULT);
+		@Override public char getId () {
+			return LZMA;
+		}
+		@Override public void compress (final ByteBuffer raw, final OutputStream out) throws IOException {
+			final LZMA2Options options = new LZMA2Options ();
+			// No use for a dictionary larger than the data: less memory per thread
+			options.setDictSize (Integer.max (LZMA2Options.DICT_SIZE_MIN,
+				Integer.min (options.getDictSize (), raw.remaining ())));
+			final LZMAOutputStream lzma = new LZMAOutputStream (out, options, raw.remaining ());
+			write (raw, lzma);
+			lzma.finish ();
+		}
+		@Override public InputStream decompress (final InputStream cooked) throws IOException {
+			return new LZMAInputStream (new CloseShieldInputStream (cooked), MEMORY_LIMIT);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Bytes sampled for the adaptive choice */
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	/** Bits per byte above which the sample is taken as already compressed */
+	private static final double MAX_ENTROPY = 7.9;
+
+	//------------------------------------------------------------------------
+	/**
+	 * Adaptive codec choice for one section, from its first 64 KB:
+	 * store if entropy says already compressed, or if DEFLATE saves less than 5 %;
+	 * LZMA if it is at least 10 % smaller than DEFLATE; DEFLATE otherwise.
+	 */
+	public static Codec choose (final ByteBuffer raw) throws IOException {
+		final ByteBuffer sample = raw.duplicate ();
+		sample.limit (sample.position () + Integer.min (SAMPLE_SIZE, sample.remaining ()));
+		if (entropy (sample) > MAX_ENTROPY) {
+			return get (NONE);
+		}
+		final int sizeDeflate = trial (get (DEFLATE), sample);
+		if (sizeDeflate >= sample.remaining () * 0.95) {
+			return get (NONE);
+		}
+		return trial (get (LZMA), sample) <= sizeDeflate * 0.9 ? get (LZMA) : get (DEFLATE);
+	}
+
+	//------------------------------------------------------------------------
+	/** Shannon entropy of buffer remaining bytes, in bits per byte */
+	static double entropy (final ByteBuffer raw) {
+		final int[] counts = new int [256];
+		for (int i = raw.position () ; i < raw.limit () ; i++) {
+			counts[raw.get (i) & 0xff]++;
+		}
+		double bits = 0;
+		for (int c : counts) {
+			if (c > 0) {
+				final double p = (double) c / raw.remaining ();
+				bits -= p * Math.log (p);
+			}
+		}
+		return bits / Math.log (2);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Compressed size of buffer remaining bytes */
+	private static int trial (final Codec c, final ByteBuffer raw) throws IOException {
+		final CountingOutputStream size = new CountingOutputStream (NullOutputStream.NULL_OUTPUT_STREAM);
+		c.compress (raw, size);
+		return size.getCount ();
+	}
+
+}
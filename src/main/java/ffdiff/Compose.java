@@ -0,0 +1,361 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+import ffdiff.ArgsReader.Compressions;
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Chained diffs, base to B, B to C and so on, composed into one diff from base to the last target.
+ * No intermediate target is written: the target of every diff is mapped as pieces, each a copy of base
+ * or a part of the literal of a DIFF section in one of the diffs, and copies of the next diff are cut
+ * out of the pieces before. Sections left whole are written as they are; cut copies are hashed again
+ * from base, cut literals decoded and cooked again.
+ */
+class Compose {
+
+	//------------------------------------------------------------------------
+	private static final OpenOption[] WRITE = new OpenOption[]
+		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE };
+	private static final int sizeSectionName = 4, sizeBuffer = 1024 * 1024;
+	/** Header fields from Target File Size on, taken from the last diff */
+	private static final int SIZE_TARGET_OFFSET = 13, SIZE_TARGET_FIELDS = Long.BYTES * 2 + Byte.BYTES * 3;
+	/** Piece source of copies of base */
+	private static final int COPY = -1;
+
+	//------------------------------------------------------------------------
+	/** Target of one diff as pieces in target order, in flat arrays */
+	private static class Pieces {
+		int size = 0;
+		long sizeTarget = 0;
+		/** Target offset of every piece */
+		long[] targets = new long [1024];
+		long[] lengths = new long [1024];
+		/** {@link #COPY}, or the diff holding the literal */
+		int[] sources = new int [1024];
+		/** Base offset of a copy, or offset in the original data of a DIFF section */
+		long[] offsets = new long [1024];
+		/** Section of the piece: diff offset and size. Base copies are all sections of the first diff. */
+		long[] sections = new long [1024], sectionSizes = new long [1024];
+		/** Whether the piece is its whole section, to be written as it is */
+		boolean[] wholes = new boolean [1024];
+
+		void add (final long length, final int source, final long offset, final long section, final long sectionSize,
+			final boolean whole) {
+			if (size == targets.length) {
+				final int capacity = size * 2;
+				targets      = Arrays.copyOf (targets, capacity);
+				lengths      = Arrays.copyOf (lengths, capacity);
+				sources      = Arrays.copyOf (sources, capacity);
+				offsets      = Arrays.copyOf (offsets, capacity);
+				sections     = Arrays.copyOf (sections, capacity);
+				sectionSizes = Arrays.copyOf (sectionSizes, capacity);
+				wholes       = Arrays.copyOf (wholes, capacity);
+			}
+			targets[size] = sizeTarget;
+			lengths[size] = length;
+			sources[size] = source;
+			offsets[size] = offset;
+			sections[size] = section;
+			sectionSizes[size] = sectionSize;
+			wholes[size] = whole;
+			size++;
+			sizeTarget += length;
+		}
+
+		/** @return Index of the piece holding target offset */
+		int find (final long target) {
+			final int i = Arrays.binarySearch (targets, 0, size, target);
+			return i >= 0 ? i : -i - 2;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private final Options options;
+	private Bases base = null;
+	private MappedFile[] diffs = null;
+	/** Pieces of the target of every diff so far */
+	private final List<Pieces> maps = new ArrayList<Pieces> ();
+	/** Original data of the last DIFF section decoded, as its pieces usually come one after the other */
+	private byte[] decoded = null;
+	private int decodedSource = COPY;
+	private long decodedSection = -1;
+
+	//------------------------------------------------------------------------
+	Compose (final Options o) {
+		Objects.requireNonNull (o.pathDiffs);
+		options = o;
+	}
+
+	//------------------------------------------------------------------------
+	public void run () throws IOException, DecoderException {
+		final List<Path> paths = options.pathDiffs;
+		diffs = new MappedFile [paths.size ()];
+		try (Bases base = new Bases (Collections.singletonList (options.pathBase))) {
+			this.base = base;
+			long sizeBase = base.size ();
+			for (int i = 0 ; i < diffs.length ; i++) {
+				diffs[i] = new MappedFile (paths.get (i));
+				final ByteBuffer header = diffs[i].slice (0, SIZE_TARGET_OFFSET + SIZE_TARGET_FIELDS);
+				if (header.getInt () != 0xffd1ff00) {
+					throw FormatUs.formatIOException ("Diff file format and version check failed: %s", paths.get (i));
+				}
+				final int sizeHeader = Integer.BYTES + Byte.BYTES + (header.get () & 0xff);
+				if (header.getLong () != sizeBase) {
+					throw FormatUs.formatIOException ("%s does not follow the target before it (size %,d)",
+						paths.get (i), sizeBase);
+				}
+				final Pieces pieces = map (i, sizeHeader);
+				sizeBase = header.getLong ();
+				if (pieces.sizeTarget != sizeBase) {
+					throw FormatUs.formatIOException ("Target size of sections (%,d) not equal to the value saved in %s (%,d)",
+						pieces.sizeTarget, paths.get (i), sizeBase);
+				}
+				maps.add (pieces);
+			}
+			write (maps.get (maps.size () - 1), diffs[diffs.length - 1].slice (SIZE_TARGET_OFFSET, SIZE_TARGET_FIELDS));
+		} finally {
+			for (MappedFile diff : diffs) {
+				if (diff != null) {
+					diff.close ();
+				}
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Pieces of the target of a diff, copies cut out of the pieces of the diff before */
+	private Pieces map (final int source, final int sizeHeader) throws IOException {
+		final Pieces before = source == 0 ? null : maps.get (source - 1), pieces = new Pieces ();
+		try (FileChannel channel = FileChannel.open (options.pathDiffs.get (source), StandardOpenOption.READ)) {
+			final DiffReader in = new DiffReader (channel);
+			in.skip (sizeHeader);
+			while (in.hasRemaining (sizeSectionName)) {
+				final long section = in.position ();
+				final String name = in.readUTF8String (sizeSectionName);
+				final long offset;
+				final int length;
+				switch (name) {
+				case "CP24":
+					checkContentSize (in, 11, name, section);
+					offset = in.readInt ();
+					length = in.readInt3BE ();
+					in.skip (Integer.BYTES);
+					break;
+				case "CP32":
+					checkContentSize (in, 27, name, section);
+					offset = in.readInt7BE ();
+					length = in.readInt ();
+					in.skip (16);
+					break;
+				case "DIFF": {
+					final int sizeContent = in.readInt ();
+					in.skip (Byte.BYTES * 2);
+					final int sizeOriginal = in.readInt ();
+					in.skip (sizeContent - Byte.BYTES * 2 - Integer.BYTES);
+					pieces.add (sizeOriginal, source, 0, section, in.position () - section, true);
+					continue;
+				}
+				case "BASE":
+				case "CPMB":
+					throw FormatUs.formatIOException ("Diffs of several bases are not composable: %s",
+						options.pathDiffs.get (source));
+				default:
+					throw FormatUs.formatIOException ("Unknown section name: %s (offset: %d)", name, section);
+				}
+				if (before == null) {
+					pieces.add (length, COPY, offset, section, in.position () - section, true);
+				} else {
+					cut (before, offset, length, pieces);
+				}
+			}
+		}
+		return pieces;
+	}
+
+	//------------------------------------------------------------------------
+	private static void checkContentSize (final DiffReader in, final int sizeContent, final String name,
+		final long section) throws IOException {
+		if (in.read () != sizeContent) {
+			throw FormatUs.formatIOException ("Wrong %s Section Content Size field value (offset: %d)", name, section);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Add the pieces of before[from, from + length) to pieces */
+	private static void cut (final Pieces before, long from, long length, final Pieces pieces) throws IOException {
+		if (from < 0 || from + length > before.sizeTarget) {
+			throw FormatUs.formatIOException ("Copy [%,d, +%,d) out of target size %,d", from, length, before.sizeTarget);
+		}
+		for (int i = before.find (from) ; length > 0 ; i++) {
+			final long skip = from - before.targets[i], n = Long.min (before.lengths[i] - skip, length);
+			if (n > 0) {
+				pieces.add (n, before.sources[i], before.offsets[i] + skip, before.sections[i], before.sectionSizes[i],
+					before.wholes[i] && n == before.lengths[i]);
+				from += n;
+				length -= n;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Write the composed diff: header of base and of the last target, then the sections of the pieces */
+	private void write (final Pieces pieces, final ByteBuffer targetFields) throws IOException, DecoderException {
+		final Codec codec = options.compression == Compressions.BASE ?
+			Codecs.get (Codecs.DEFLATE) : Diff.codec (options.compression);
+		try (FileChannel channel = FileChannel.open (options.pathDiff, WRITE);
+			DataOutputStream out = new DataOutputStream (new BufferedOutputStream (Channels.newOutputStream (channel), sizeBuffer))) {
+			out.write (Hex.decodeHex ("ffd1ff00"));
+			out.write (27);
+			out.writeLong (base.size ());
+			Codecs.write (targetFields, out);
+
+			// Cut literals joined into sections of up to 16 MB
+			final ByteBuffer literal = ByteBuffer.allocate (MappedFile.MAX_SLICE);
+			for (int i = 0 ; i < pieces.size ; i++) {
+				final int source = pieces.sources[i];
+				if (pieces.wholes[i] && (source <= 0 || ! dictionary (source, pieces.sections[i]))) {
+					writeLiteral (literal, codec, out, channel);
+					writeSection (source == COPY ? diffs[0] : diffs[source], pieces.sections[i], pieces.sectionSizes[i], out);
+				} else if (source == COPY) {
+					writeLiteral (literal, codec, out, channel);
+					Diff.diffCP (out, base, pieces.offsets[i], (int) pieces.lengths[i], false, 0);
+				} else {
+					final byte[] data = decode (source, pieces.sections[i]);
+					for (long k = 0 ; k < pieces.lengths[i] ;) {
+						final int n = (int) Long.min (literal.remaining (), pieces.lengths[i] - k);
+						literal.put (data, (int) (pieces.offsets[i] + k), n);
+						k += n;
+						if (! literal.hasRemaining ()) {
+							writeLiteral (literal, codec, out, channel);
+						}
+					}
+				}
+			}
+			writeLiteral (literal, codec, out, channel);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Whether a DIFF section is cooked with a preset dictionary, taken from the base of its diff */
+	private boolean dictionary (final int source, final long section) throws IOException {
+		return Codecs.get ((char) (diffs[source].get (section + sizeSectionName + Integer.BYTES) & 0xff))
+			instanceof DictionaryCodec;
+	}
+
+	//------------------------------------------------------------------------
+	/** Write diff[section, section + size) as it is */
+	private static void writeSection (final MappedFile diff, final long section, final long size, final OutputStream out)
+	throws IOException {
+		for (long k = 0 ; k < size ; k += MappedFile.MAX_SLICE) {
+			Codecs.write (diff.slice (section + k, (int) Long.min (MappedFile.MAX_SLICE, size - k)), out);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Write the literal gathered so far as one DIFF section, cooked when that saves anything, then clear it */
+	private void writeLiteral (final ByteBuffer literal, final Codec codec, final DataOutputStream out,
+		final FileChannel channel) throws IOException {
+		if (literal.position () == 0) {
+			return;
+		}
+		literal.flip ();
+		final byte[] section = Diff.cook (literal, codec, base, 0, 0);
+		if (section != null) {
+			out.write (section);
+		} else {
+			Diff.diffDIFF (literal, out, channel);
+		}
+		literal.clear ();
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Original data of a DIFF section, checked against its checksum */
+	private byte[] decode (final int source, final long section) throws IOException {
+		if (source == decodedSource && section == decodedSection) {
+			return decoded;
+		}
+		final MappedFile diff = diffs[source];
+		final ByteBuffer header = diff.slice (section + sizeSectionName, Diff.DIFF_HEADER_SIZE - sizeSectionName);
+		final int sizeContent = header.getInt ();
+		final char compression = (char) (header.get () & 0xff), encryption = (char) (header.get () & 0xff);
+		final byte[] data = new byte [header.getInt ()], checksum = new byte [16];
+		header.get (checksum);
+		final Codec codec = Codecs.get (compression);
+		if (codec == null || encryption != 'N') {
+			throw FormatUs.formatIOException ("Unsupported Compression or Encryption Algorithm: %s%s (offset: %d)",
+				compression, encryption, section);
+		}
+		final ByteBuffer cooked = diff.slice (section + Diff.DIFF_HEADER_SIZE, sizeContent - (Diff.DIFF_HEADER_SIZE - 8));
+		if (codec.getId () == Codecs.NONE) {
+			cooked.get (data);
+		} else {
+			final byte[] b = new byte [cooked.remaining ()];
+			cooked.get (b);
+			final InputStream in = new ByteArrayInputStream (b);
+			try (InputStream original = codec instanceof DictionaryCodec ?
+				((DictionaryCodec) codec).decompress (in, readDictionary (source, new DataInputStream (in))) :
+				codec.decompress (in)) {
+				IOUtils.readFully (original, data);
+			}
+		}
+		final MessageDigest md5 = DigestUtils.getMd5Digest ();
+		if (! MessageDigest.isEqual (md5.digest (data), checksum)) {
+			throw FormatUs.formatIOException ("DIFF section checksum mismatch (offset: %d) in %s",
+				section, options.pathDiffs.get (source));
+		}
+		decoded = data;
+		decodedSource = source;
+		decodedSection = section;
+		return data;
+	}
+
+	//------------------------------------------------------------------------
+	/** Read Dictionary Offset and Dictionary Length of cooked data, then the dictionary from the base of the diff */
+	private byte[] readDictionary (final int source, final DataInputStream cooked) throws IOException {
+		final long offset = cooked.readLong ();
+		final int length = cooked.readInt ();
+		final long sizeBase = source == 0 ? base.size () : maps.get (source - 1).sizeTarget;
+		if (offset < 0 || length < 0 || length > Codecs.MAX_DICTIONARY_SIZE || offset + length > sizeBase) {
+			throw FormatUs.formatIOException ("Wrong dictionary [%,d, +%,d) of base size %,d", offset, length, sizeBase);
+		}
+		if (source == 0) {
+			final byte[] dictionary = new byte [length];
+			base.slice (offset, length).get (dictionary);
+			return dictionary;
+		}
+		return read (maps.get (source - 1), offset, length);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Target bytes [from, from + length) of pieces, from base and decoded literals */
+	private byte[] read (final Pieces pieces, long from, final int length) throws IOException {
+		final byte[] b = new byte [length];
+		for (int i = pieces.find (from), done = 0 ; done < length ; i++) {
+			final long skip = from - pieces.targets[i];
+			final int n = (int) Long.min (pieces.lengths[i] - skip, length - done);
+			if (n <= 0) {
+				continue;
+			}
+			if (pieces.sources[i] == COPY) {
+				base.slice (pieces.offsets[i] + skip, n).get (b, done, n);
+			} else {
+				System.arraycopy (decode (pieces.sources[i], pieces.sections[i]), (int) (pieces.offsets[i] + skip), b, done, n);
+			}
+			from += n;
+			done += n;
+		}
+		return b;
+	}
+
+}
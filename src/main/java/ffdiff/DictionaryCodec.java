@@ -0,0 +1,17 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** Codec that compresses with a preset dictionary, taken from base by the DIFF section */
+public interface DictionaryCodec extends Codec {
+
+	//------------------------------------------------------------------------
+	/** Compress buffer remaining bytes into out, with dictionary remaining bytes as preset. Positions unchanged. */
+	void compress (ByteBuffer raw, ByteBuffer dictionary, OutputStream out) throws IOException;
+
+	//------------------------------------------------------------------------
+	/** @return Original data stream, reading cooked data from in. Closing it must not close in. */
+	InputStream decompress (InputStream cooked, byte[] dictionary) throws IOException;
+
+}
@@ -1,13 +1,21 @@
 package ffdiff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 
+import ffdiff.ArgsReader.Chunkings;
+import ffdiff.ArgsReader.Compressions;
+import ffdiff.ArgsReader.Hashes;
 import ffdiff.ArgsReader.Options;
 
 /** Difference file creation */
@@ -18,112 +26,1074 @@ class Diff {
 		pathDebugTarget = Paths.get ("target.debug"),
 		pathDebugDiff   = Paths.get ("diff.debug");
 	private static final OpenOption[] WRITE = new OpenOption[]
-		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE };
+	private static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+	/** CP24 Copy Offset is a signed 4 bytes integer for Patch, Copy Length a 3 bytes integer */
+	private static final long MAX_CP24_OFFSET = Integer.MAX_VALUE;
+	private static final int MAX_CP24_LENGTH = 0xffffff;
+	/** DIFF section fields before Cooked Data */
+	private static final byte[] DIFF = "DIFF".getBytes (StandardCharsets.US_ASCII);
+	static final int DIFF_HEADER_SIZE = 30;
 
 	//------------------------------------------------------------------------
 	private ArgsReader.Options options = null;
-	// TODO init cap
-	private Map<UniHash, Long> baseHash2Offset   = new HashMap<UniHash, Long>();
-	private Map<Long, UniHash> targetOffset2Hash = new LinkedHashMap<Long, UniHash>();
+	/** Base block index, null until built or mapped */
+	private BlockIndex baseIndex = null;
+	private BlockList targetBlocks = new BlockList ();
+	/** Weak checksums of full size base blocks, only built for rolling chunking */
+	private WeakFilter baseWeak = null;
+	/** Base signatures of earlier runs, null for none */
+	private SignatureCache cache = null;
+	private final Metrics metrics = new Metrics ("diff");
+	/** Worker pool kept by an engine between runs, null for a pool of each run */
+	private ExecutorService workers = null;
 
 	//------------------------------------------------------------------------
 	Diff (final Options o) {
 		Objects.requireNonNull (o);
 		options = o;
+		if (o.pathCache != null) {
+			cache = new SignatureCache (o.pathCache, o.sizeCacheMax);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Diff against base signatures of {@link #indexBase}, not hashing base again */
+	Diff (final Options o, final SignatureCache.Signatures base) {
+		this (o);
+		baseIndex = base.index;
+		baseWeak = base.weak;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Phases and counters of the run */
+	Metrics getMetrics () {
+		return metrics;
+	}
+
+	/** Run in the given pool, left running, instead of a pool of its own */
+	void setWorkers (final ExecutorService workers) {
+		this.workers = workers;
 	}
 
 	//------------------------------------------------------------------------
-	public void run () throws IOException, DecoderException {
-		hash (options.pathBase,   baseHash2Offset, null);
-		hash (options.pathTarget, null,            targetOffset2Hash);
-		diff ();
+	/** Diff target file into diff file */
+	public void run () throws IOException, DecoderException, InterruptedException {
+		final boolean rolling = options.chunking == Chunkings.ROLLING, fast = options.hash == Hashes.FAST;
+		final ExecutorService pool = newPool ();
+		try (Bases base = new Bases (options.pathBases);
+			MappedFile target = new MappedFile (options.pathTarget)) {
+			try {
+				// Strong hashes: base and target hashed at the same time, merged in offset order.
+				// Fast hashes: target blocks are confirmed against base while hashed, so after base is indexed.
+				final Metrics.Phase indexing = metrics.phase ("index base", base.size ());
+				final boolean indexed = baseIndex != null || loadSignatures ();
+				final List<List<Future<Segment>>> baseSegments = indexed ? null : submitHash (pool, base, rolling);
+				final List<Future<Segment>> targetSegments = rolling || fast ? null : submitHash (pool, target, false);
+				if (! indexed) {
+					mergeBase (base, baseSegments);
+					saveSignatures ();
+				}
+				indexing.close ();
+				final Metrics.Phase matching = metrics.phase ("match target", target.size ());
+				if (rolling) {
+					hashRolling (base, target, targetBlocks);
+				} else if (fast) {
+					mergeMatched (submitMatch (pool, base, target));
+				} else {
+					mergeTarget (targetSegments);
+				}
+				countMatches ();
+				matching.close ();
+				final Metrics.Phase extending = metrics.phase ("extend", target.size ());
+				extend (base, target);
+				extending.close ();
+				final Metrics.Phase writing = metrics.phase ("write diff", target.size ());
+				diff (base, target, pool);
+				writing.close ();
+			} finally {
+				release (pool);
+			}
+		}
 		if (options.verbose) {
 			writeDebug ();
 		}
+		finishMetrics ();
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Single pass over a target stream, in constant memory for the target, into a diff channel from its position on.
+	 * Timestamp is now; permissions and attributes are those of base, the version the target replaces.
+	 * Channels are left open.
+	 */
+	public void run (final ReadableByteChannel target, final SeekableByteChannel outDiff)
+	throws IOException, DecoderException, InterruptedException {
+		if (options.chunking == Chunkings.ROLLING) {
+			throw new IllegalArgumentException ("Rolling chunking needs the whole target, not a stream");
+		}
+		final ExecutorService pool = newPool ();
+		try (Bases base = new Bases (options.pathBases)) {
+			try (SectionWriter writer = new SectionWriter (base, pool, outDiff, 0, System.currentTimeMillis (),
+				IOUs.getFilePermissions (options.pathBase), IOUs.getFileAttributes (options.pathBase))) {
+				final Metrics.Phase indexing = metrics.phase ("index base", base.size ());
+				if (baseIndex == null && ! loadSignatures ()) {
+					mergeBase (base, submitHash (pool, base, false));
+					saveSignatures ();
+				}
+				indexing.close ();
+				try (Metrics.Phase phase = metrics.phase ("diff stream", 0)) {
+					diffStream (base, target, writer);
+					phase.bytes = writer.finish ();
+				}
+			} finally {
+				release (pool);
+			}
+		}
+		if (options.verbose) {
+			writeDebugBase ();
+		}
+		finishMetrics ();
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Hash base, or map its signatures from the cache.
+	 * @return Signatures to share, read only, with other diffs of the same base and options
+	 */
+	SignatureCache.Signatures indexBase () throws IOException, InterruptedException {
+		if (baseIndex == null && ! loadSignatures ()) {
+			final ExecutorService pool = newPool ();
+			try (Bases base = new Bases (options.pathBases)) {
+				mergeBase (base, submitHash (pool, base, options.chunking == Chunkings.ROLLING));
+			} finally {
+				release (pool);
+			}
+			saveSignatures ();
+		}
+		return new SignatureCache.Signatures (baseIndex, baseWeak);
+	}
+
+	//------------------------------------------------------------------------
+	private ExecutorService newPool () {
+		return workers != null ? workers : Executors.newFixedThreadPool (options.threads);
+	}
+
+	//------------------------------------------------------------------------
+	/** Stop a pool of this run; tasks left in the pool of an engine are its own to finish */
+	private void release (final ExecutorService pool) {
+		if (pool != workers) {
+			pool.shutdownNow ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Whether base signatures were mapped from the cache */
+	private boolean loadSignatures () throws IOException {
+		final SignatureCache.Signatures signatures = cache == null ? null : cache.load (options);
+		if (signatures == null) {
+			return false;
+		}
+		baseIndex = signatures.index;
+		baseWeak = signatures.weak;
+		metrics.set ("baseCached", 1);
+		return true;
+	}
+
+	//------------------------------------------------------------------------
+	private void saveSignatures () throws IOException {
+		if (cache != null) {
+			cache.save (options, baseIndex, baseWeak);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Count target blocks found in base, before extension */
+	private void countMatches () {
+		long matched = 0;
+		for (int i = 0 ; i < targetBlocks.size () ; i++) {
+			if (targetBlocks.getBaseOffset (i) != BlockIndex.NOT_FOUND) {
+				matched++;
+			}
+		}
+		metrics.count ("targetBlocks", targetBlocks.size ());
+		metrics.count ("matchedBlocks", matched);
+	}
+
+	//------------------------------------------------------------------------
+	/** Base index fill, match and copy rates, then the summary */
+	private void finishMetrics () throws IOException {
+		metrics.set ("baseBlocks", baseIndex.size ());
+		metrics.set ("indexSlots", baseIndex.capacity ());
+		metrics.set ("indexBytes", (long) baseIndex.capacity () * BlockIndex.SLOT_BYTES);
+		metrics.ratio ("indexLoadFactor", (double) baseIndex.size () / baseIndex.capacity ());
+		final long blocks = metrics.get ("targetBlocks"), copied = metrics.get ("copyBytes"),
+			target = copied + metrics.get ("literalBytes");
+		metrics.ratio ("matchRate", blocks == 0 ? 0 : (double) metrics.get ("matchedBlocks") / blocks);
+		metrics.ratio ("copyRate", target == 0 ? 0 : (double) copied / target);
+		metrics.finish (options);
+	}
+
+	//------------------------------------------------------------------------
+	/** Hashes of the blocks in one segment of a file, in offset order, in flat arrays */
+	private static class Segment {
+		int size = 0;
+		int[] lengths;
+		long[] keys1, keys2;
+		/** Rolling checksums of the full size blocks, only for rolling chunking base */
+		int[] weaks = null;
+
+		Segment (final int capacity, final boolean weak) {
+			lengths = new int [capacity];
+			keys1 = new long [capacity];
+			keys2 = new long [capacity];
+			weaks = weak ? new int [capacity] : null;
+		}
+
+		/** @param weak Rolling checksum, ignored without weaks */
+		void add (final int length, final long key1, final long key2, final int weak) {
+			if (size == lengths.length) {
+				final int capacity = size + (size >> 1) + 1;
+				lengths = Arrays.copyOf (lengths, capacity);
+				keys1   = Arrays.copyOf (keys1, capacity);
+				keys2   = Arrays.copyOf (keys2, capacity);
+				if (weaks != null) {
+					weaks = Arrays.copyOf (weaks, capacity);
+				}
+			}
+			lengths[size] = length;
+			keys1[size]   = key1;
+			keys2[size]   = key2;
+			if (weaks != null) {
+				weaks[size] = weak;
+			}
+			size++;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Block of a file, as a mapped view with position and limit around the block */
+	private interface BlockVisitor {
+		void visit (ByteBuffer block) throws IOException;
+	}
+
+	//------------------------------------------------------------------------
+	/** Visit fixed size blocks in file[from, to), moving over one mapped view per megabyte */
+	private void forEachBlock (final MappedFile file, final long from, final long to, final BlockVisitor visitor)
+	throws IOException {
+		final int sizeBlock = options.sizeBlock, sizeView = (int) roundUpToBlock (MIN_SEGMENT_SIZE);
+		for (long offset = from ; offset < to ; offset += sizeView) {
+			final ByteBuffer view = file.slice (offset, (int) Long.min (sizeView, to - offset));
+			for (int i = 0 ; i < view.capacity () ; i += sizeBlock) {
+				view.limit (Integer.min (i + sizeBlock, view.capacity ())).position (i);
+				visitor.visit (view);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Visit content-defined chunks of the whole file */
+	private void forEachChunk (final MappedFile file, final BlockVisitor visitor) throws IOException {
+		final Chunker chunker = new Chunker (options.sizeChunkMin, options.sizeChunkAvg, options.sizeChunkMax);
+		final long size = file.size ();
+		for (long offset = 0 ; offset < size ;) {
+			// One view holds many chunks; the last chunk of a view may be cut short, so rechunk it in the next view
+			final ByteBuffer view = file.slice (offset, (int) Long.min (MappedFile.MAX_SLICE, size - offset));
+			final boolean last = offset + view.capacity () == size;
+			for (int i = 0 ; i < view.capacity () ; ) {
+				view.limit (view.capacity ()).position (i);
+				if (! last && view.remaining () < chunker.getMaxSize ()) {
+					break;
+				}
+				final int length = chunker.next (view);
+				view.limit (i + length);
+				visitor.visit (view);
+				i += length;
+				offset += length;
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Fixed size blocks: split the file into block aligned segments, hashed by the pool.
+	 * Content-defined chunks depend on everything before them, so hashed by one task per file.
+	 */
+	private List<Future<Segment>> submitHash (final ExecutorService pool, final MappedFile file, final boolean weak) {
+		List<Future<Segment>> segments = new ArrayList<Future<Segment>> ();
+		if (options.chunking == Chunkings.CDC) {
+			segments.add (pool.submit (() -> hash (file, 0, file.size (), weak)));
+			return segments;
+		}
+		forEachSegment (file, (from, to) -> segments.add (pool.submit (() -> hash (file, from, to, weak))));
+		return segments;
+	}
+
+	//------------------------------------------------------------------------
+	/** Hash every base file, the last one first, in the order of {@link #mergeBase}. @return Segments by base id */
+	private List<List<Future<Segment>>> submitHash (final ExecutorService pool, final Bases base, final boolean weak) {
+		final List<List<Future<Segment>>> files =
+			new ArrayList<List<Future<Segment>>> (Collections.nCopies (base.count (), null));
+		for (int id = base.count () - 1 ; id >= 0 ; id--) {
+			files.set (id, submitHash (pool, base.file (id), weak));
+		}
+		return files;
+	}
+
+	//------------------------------------------------------------------------
+	private interface SegmentVisitor {
+		void visit (long from, long to);
+	}
+
+	//------------------------------------------------------------------------
+	/** Split file into block aligned segments, about 4 per thread */
+	private void forEachSegment (final MappedFile file, final SegmentVisitor visitor) {
+		final long size = file.size ();
+		final long sizeSegment = roundUpToBlock (Long.max (MIN_SEGMENT_SIZE, size / (options.threads * 4L)));
+		long from = 0;
+		do {
+			final long to = Long.min (size, from + sizeSegment);
+			visitor.visit (from, to);
+			from = to;
+		} while (from < size);
+	}
+
+	//------------------------------------------------------------------------
+	private long roundUpToBlock (final long size) {
+		return (size + options.sizeBlock - 1) / options.sizeBlock * options.sizeBlock;
+	}
+
+	//------------------------------------------------------------------------
+	/** Hash blocks in file[from, to), or content-defined chunks of the whole file */
+	private Segment hash (final MappedFile file, final long from, final long to, final boolean weak) throws IOException {
+		assert file != null;
+		final int sizeBlock = options.sizeBlock;
+		final boolean fast = options.hash == Hashes.FAST;
+		final Segment segment = new Segment (options.chunking == Chunkings.CDC ?
+			(int) (file.size () / options.sizeChunkAvg + 1) : (int) ((to - from + sizeBlock - 1) / sizeBlock), weak);
+		final UniHash hash = new UniHash ();
+		final RollingChecksum weakSum = new RollingChecksum ();
+		final BlockVisitor visitor = block -> {
+			final int sum = weak && block.remaining () == sizeBlock ? weakSum.reset (block).get () : 0;
+			if (fast) {
+				segment.add (block.remaining (), XXHash64.hash (block), 0, sum);
+			} else {
+				hash.reset (block);
+				segment.add (hash.getLength (), hash.getKey1 (), hash.getKey2 (), sum);
+			}
+		};
+		if (options.chunking == Chunkings.CDC) {
+			forEachChunk (file, visitor);
+		} else {
+			forEachBlock (file, from, to, visitor);
+		}
+		return segment;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Put base blocks into index in offset order, so later duplicates win like sequential hashing.
+	 * Bases go from the last one to the first one, so blocks of the primary base win over older versions.
+	 */
+	private void mergeBase (final Bases base, final List<List<Future<Segment>>> files)
+	throws IOException, InterruptedException {
+		final int sizeBlockExpected = options.chunking == Chunkings.CDC ? options.sizeChunkAvg : options.sizeBlock;
+		baseIndex = new BlockIndex (base.size () / sizeBlockExpected + 1);
+		baseWeak = options.chunking == Chunkings.ROLLING ? new WeakFilter (base.size () / options.sizeBlock + 1) : null;
+		for (int id = files.size () - 1 ; id >= 0 ; id--) {
+			mergeBase (base.start (id), files.get (id));
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Put blocks of one base from offset on */
+	private void mergeBase (long offset, final List<Future<Segment>> segments) throws IOException, InterruptedException {
+		for (Future<Segment> future : segments) {
+			final Segment segment = join (future);
+			for (int i = 0 ; i < segment.size ; i++) {
+				baseIndex.put (segment.keys1[i], segment.keys2[i], segment.lengths[i], offset);
+				if (segment.weaks != null && segment.lengths[i] == options.sizeBlock) {
+					baseWeak.add (segment.weaks[i]);
+				}
+				offset += segment.lengths[i];
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void mergeTarget (final List<Future<Segment>> segments) throws IOException, InterruptedException {
+		targetBlocks.clear ();
+		for (Future<Segment> future : segments) {
+			final Segment segment = join (future);
+			for (int i = 0 ; i < segment.size ; i++) {
+				final long key1 = segment.keys1[i];
+				targetBlocks.add (segment.lengths[i], baseIndex.get (key1, segment.keys2[i], segment.lengths[i]),
+					(int) (key1 >>> Integer.SIZE));
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Fast hashes: match target segments against the complete base index in the pool */
+	private List<Future<BlockList>> submitMatch (final ExecutorService pool, final Bases base, final MappedFile target) {
+		List<Future<BlockList>> segments = new ArrayList<Future<BlockList>> ();
+		if (options.chunking == Chunkings.CDC) {
+			segments.add (pool.submit (() -> match (base, target, 0, target.size ())));
+		} else {
+			forEachSegment (target, (from, to) -> segments.add (pool.submit (() -> match (base, target, from, to))));
+		}
+		return segments;
+	}
+
+	//------------------------------------------------------------------------
+	/** Match blocks in target[from, to), or content-defined chunks of the whole target */
+	private BlockList match (final Bases base, final MappedFile target, final long from, final long to)
+	throws IOException {
+		final BlockList blocks = new BlockList ();
+		final UniHash hash = new UniHash ();
+		final BlockVisitor visitor = block -> addTarget (blocks, block, base, hash);
+		if (options.chunking == Chunkings.CDC) {
+			forEachChunk (target, visitor);
+		} else {
+			forEachBlock (target, from, to, visitor);
+		}
+		return blocks;
+	}
+
+	//------------------------------------------------------------------------
+	private void mergeMatched (final List<Future<BlockList>> segments) throws IOException, InterruptedException {
+		targetBlocks.clear ();
+		for (Future<BlockList> future : segments) {
+			targetBlocks.addAll (join (future));
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private static <T> T join (final Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get ();
+		} catch (ExecutionException e) {
+			throw e.getCause () instanceof IOException ? (IOException) e.getCause () : new IOException (e.getCause ());
+		}
 	}
 
 	//------------------------------------------------------------------------
-	private void hash (Path path, Map<UniHash, Long> hash2offset, Map<Long, UniHash> offset2hash)
-		throws IOException {
-		assert path != null;
-		if (hash2offset != null) {
-			hash2offset.clear ();
+	/**
+	 * Slide a block size window over the target one byte at a time, the target copied in bulk into a buffer.
+	 * A window whose weak checksum passes the base filter is confirmed by its hash,
+	 * then recorded as a block of its own; bytes in between are recorded as literal blocks
+	 * no longer than the block size. Full size literals are not looked up again: their window already missed.
+	 */
+	private void hashRolling (final Bases base, final MappedFile target, final BlockList blocks)
+	throws IOException {
+		assert base != null && target != null && blocks != null && baseWeak != null;
+		blocks.clear ();
+		final int sizeBlock = options.sizeBlock;
+		final boolean fast = options.hash == Hashes.FAST;
+		final long size = target.size ();
+		final RollingChecksum weak = new RollingChecksum ();
+		final UniHash hash = new UniHash (), hashLiteral = new UniHash ();
+		// buffer[0, end) holds target[bufferOffset, bufferOffset + end)
+		final byte[] buffer = new byte [Integer.max (MIN_SEGMENT_SIZE, sizeBlock * 4)];
+		long pos = 0, literal = 0, bufferOffset = 0;
+		int end = 0;
+		boolean rolled = false;
+
+		while (pos + sizeBlock <= size) {
+			if (! rolled) {
+				weak.reset (target.slice (pos, sizeBlock));
+				rolled = true;
+			}
+			if (baseWeak.mightContain (weak.get ())) {
+				final ByteBuffer block = target.slice (pos, sizeBlock);
+				final long baseOffset = find (block, base, hash);
+				if (baseOffset != BlockIndex.NOT_FOUND) {
+					addLiteral (blocks, base, target, hashLiteral, literal, pos);
+					blocks.add (sizeBlock, baseOffset, checksum (block, hash));
+					pos += sizeBlock;
+					literal = pos;
+					rolled = false;
+					continue;
+				}
+			}
+
+			if (pos + 1 - literal >= sizeBlock) {
+				blocks.add (sizeBlock, BlockIndex.NOT_FOUND,
+					fast ? 0 : hashLiteral.reset (target.slice (literal, sizeBlock)).getChecksum ());
+				literal = pos + 1;
+			}
+			if (pos + sizeBlock < size) {
+				if (pos + sizeBlock >= bufferOffset + end) {
+					bufferOffset = pos;
+					end = (int) Long.min (buffer.length, size - pos);
+					target.slice (pos, end).get (buffer, 0, end);
+				}
+				final int i = (int) (pos - bufferOffset);
+				weak.roll (buffer[i], buffer[i + sizeBlock]);
+			}
+			pos++;
+		}
+
+		// Tail shorter than a block may still equal the short last block of base
+		if (pos < size) {
+			final ByteBuffer tail = target.slice (pos, (int) (size - pos));
+			final long baseOffset = find (tail, base, hash);
+			if (baseOffset != BlockIndex.NOT_FOUND) {
+				addLiteral (blocks, base, target, hashLiteral, literal, pos);
+				blocks.add (tail.remaining (), baseOffset, checksum (tail, hash));
+				literal = size;
+			}
 		}
-		if (offset2hash != null) {
-			offset2hash.clear ();
+		addLiteral (blocks, base, target, hashLiteral, literal, size);
+	}
+
+	//------------------------------------------------------------------------
+	/** Record target[from, to) as one block, if not empty. @param hash Reused */
+	private void addLiteral (final BlockList blocks, final Bases base, final MappedFile target,
+		final UniHash hash, final long from, final long to) throws IOException {
+		if (from < to) {
+			addTarget (blocks, target.slice (from, (int) (to - from)), base, hash);
 		}
-		byte[] buffer = new byte[options.sizeBlock];
+	}
+
+	//------------------------------------------------------------------------
+	/** Append a target block, together with the offset of the equal base block if any. @param hash Reused */
+	private void addTarget (final BlockList blocks, final ByteBuffer block, final Bases base, final UniHash hash)
+	throws IOException {
+		final long baseOffset = find (block, base, hash);
+		blocks.add (block.remaining (), baseOffset,
+			baseOffset == BlockIndex.NOT_FOUND && options.hash == Hashes.FAST ? 0 : checksum (block, hash));
+	}
+
+	//------------------------------------------------------------------------
+	/** Checksum of a block just passed to {@link #find}: MD5 computed only now for fast hashes */
+	private int checksum (final ByteBuffer block, final UniHash hash) {
+		return options.hash == Hashes.FAST ? UniHash.checksum (block) : hash.getChecksum ();
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Strong hashes: look up the UniHash of the block, which is left in hash.
+	 * Fast hashes: look up the xxHash64 of the block, then confirm the candidate byte by byte.
+	 * @return Offset of the equal base block, or {@link BlockIndex#NOT_FOUND}
+	 */
+	private long find (final ByteBuffer block, final Bases base, final UniHash hash) throws IOException {
+		if (options.hash != Hashes.FAST) {
+			return baseIndex.get (hash.reset (block));
+		}
+		final int length = block.remaining ();
+		final long baseOffset = baseIndex.get (XXHash64.hash (block), 0, length);
+		if (baseOffset == BlockIndex.NOT_FOUND || ! base.slice (baseOffset, length).equals (block)) {
+			return BlockIndex.NOT_FOUND;
+		}
+		return baseOffset;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Extend every matched block byte by byte against base, backward into the literal before it
+	 * and forward into the literal after it. Literals shrink or disappear.
+	 * Extended blocks get their checksum again from base; literals are cut into pieces of up to 16 MB.
+	 */
+	private void extend (final Bases base, final MappedFile target) throws IOException {
+		final BlockList blocks = new BlockList ();
+		// Pending match, then pending literal [literalFrom, literalTo) right after it
+		long matchBase = BlockIndex.NOT_FOUND, literalFrom = 0, literalTo = 0;
+		int matchLength = 0, matchChecksum = 0;
+		boolean matchExtended = false;
+
 		long offset = 0;
+		for (int i = 0 ; i < targetBlocks.size () ; i++) {
+			final long baseOffset = targetBlocks.getBaseOffset (i);
+			final int length = targetBlocks.getLength (i);
+			if (baseOffset == BlockIndex.NOT_FOUND) {
+				long k = 0;
+				if (matchBase != BlockIndex.NOT_FOUND && literalFrom == literalTo) {
+					final long baseEnd = matchBase + matchLength;
+					k = extendForward (base, baseEnd, target, offset,
+						Long.min (Long.min (length, base.endOf (matchBase) - baseEnd), Integer.MAX_VALUE - matchLength));
+					matchLength += k;
+					matchExtended |= k > 0;
+				}
+				if (literalFrom == literalTo) {
+					literalFrom = literalTo = offset + k;
+				}
+				literalTo = offset + length;
+			} else {
+				final long k = extendBackward (base, baseOffset, target, offset,
+					Long.min (Long.min (literalTo - literalFrom, baseOffset - base.startOf (baseOffset)),
+					Integer.MAX_VALUE - length));
+				addMatch (blocks, base, matchBase, matchLength, matchExtended, matchChecksum);
+				addLiterals (blocks, literalFrom, literalTo - k);
+				matchBase = baseOffset - k;
+				matchLength = (int) (length + k);
+				matchChecksum = targetBlocks.getChecksum (i);
+				matchExtended = k > 0;
+				literalFrom = literalTo = offset + length;
+			}
+			offset += length;
+		}
+		addMatch (blocks, base, matchBase, matchLength, matchExtended, matchChecksum);
+		addLiterals (blocks, literalFrom, literalTo);
+		targetBlocks = blocks;
+	}
+
+	//------------------------------------------------------------------------
+	private static void addMatch (final BlockList blocks, final Bases base, final long baseOffset,
+		final int length, final boolean extended, final int checksum) throws IOException {
+		if (baseOffset != BlockIndex.NOT_FOUND) {
+			blocks.add (length, baseOffset,
+				extended ? ByteBuffer.wrap (md5 (base, baseOffset, length)).getInt () : checksum);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private static void addLiterals (final BlockList blocks, final long from, final long to) {
+		for (long i = from ; i < to ; i += MappedFile.MAX_SLICE) {
+			blocks.add ((int) Long.min (MappedFile.MAX_SLICE, to - i), BlockIndex.NOT_FOUND, 0);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Length of the common prefix of base[baseFrom, +limit) and target[targetFrom, +limit) */
+	private static long extendForward (final Bases base, final long baseFrom,
+		final MappedFile target, final long targetFrom, final long limit) throws IOException {
+		long k = 0;
+		while (k < limit) {
+			final int n = (int) Long.min (MappedFile.MAX_SLICE, limit - k);
+			final int m = Mismatch.prefix (base.slice (baseFrom + k, n), target.slice (targetFrom + k, n));
+			k += m;
+			if (m < n) {
+				break;
+			}
+		}
+		return k;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Length of the common suffix of base[baseTo - limit, baseTo) and target[targetTo - limit, targetTo) */
+	private static long extendBackward (final Bases base, final long baseTo,
+		final MappedFile target, final long targetTo, final long limit) throws IOException {
+		long k = 0;
+		while (k < limit) {
+			final int n = (int) Long.min (MappedFile.MAX_SLICE, limit - k);
+			final int m = Mismatch.suffix (base.slice (baseTo - k - n, n), target.slice (targetTo - k - n, n));
+			k += m;
+			if (m < n) {
+				break;
+			}
+		}
+		return k;
+	}
+
+	//------------------------------------------------------------------------
+	private void diff (final Bases base, final MappedFile target, final ExecutorService pool)
+	throws IOException, DecoderException, InterruptedException {
+		try (FileChannel channel = FileChannel.open (options.pathDiff, WRITE);
+			SectionWriter writer = new SectionWriter (base, pool, channel, Files.size (options.pathTarget),
+			Files.getLastModifiedTime (options.pathTarget).toMillis (),
+			IOUs.getFilePermissions (options.pathTarget), IOUs.getFileAttributes (options.pathTarget))) {
+			long offset = 0;
+			for (int i = 0 ; i < targetBlocks.size () ; i++) {
+				final long baseOffset = targetBlocks.getBaseOffset (i);
+				final int length = targetBlocks.getLength (i);
+				if (baseOffset == BlockIndex.NOT_FOUND) {
+					writer.literal (target.slice (offset, length), false);
+				} else {
+					writer.copy (baseOffset, length, targetBlocks.getChecksum (i));
+				}
+				offset += length;
+			}
+			writer.finish ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Target read once from a stream: every block is looked up in the base index, extended against base
+	 * and written at once. Only one window of the target is in memory at a time.
+	 * Literal bytes leaving the window are written first, so extension backward stops at the window start.
+	 */
+	private void diffStream (final Bases base, final ReadableByteChannel in, final SectionWriter writer)
+	throws IOException, InterruptedException {
+		final boolean cdc = options.chunking == Chunkings.CDC;
+		final Chunker chunker = cdc ? new Chunker (options.sizeChunkMin, options.sizeChunkAvg, options.sizeChunkMax) : null;
+		final int sizeBlock = options.sizeBlock, sizeMax = cdc ? chunker.getMaxSize () : sizeBlock;
+		final ByteBuffer window = ByteBuffer.allocateDirect (MappedFile.MAX_SLICE + sizeMax), block = window.duplicate ();
+		window.limit (0);
+		final UniHash hash = new UniHash ();
+		// Pending match, then pending literal window[literal, i) right after it
+		long matchBase = BlockIndex.NOT_FOUND, blocks = 0, matched = 0;
+		int matchLength = 0, matchChecksum = 0, literal = 0;
+		boolean matchExtended = false, eof = false;
 
-		try (InputStream in = Files.newInputStream (path, StandardOpenOption.READ)) {
-			for (int read = in.read (buffer) ; read > 0 ; read = in.read (buffer)) {
-				UniHash hash = new UniHash (buffer, 0, read);
-				if (hash2offset != null) {
-					hash2offset.put (hash, offset);
+		for (int i = 0 ;;) {
+			if (! eof && window.limit () - i < sizeMax) {
+				if (literal < i) {
+					writeMatch (writer, base, matchBase, matchLength, matchExtended, matchChecksum);
+					matchBase = BlockIndex.NOT_FOUND;
+					writer.literal (slice (window, literal, i), true);
 				}
-				if (offset2hash != null) {
-					offset2hash.put (offset, hash);
+				window.position (i);
+				window.compact ();
+				while (window.hasRemaining () && ! eof) {
+					eof = in.read (window) < 0;
 				}
-				offset += read;
+				window.flip ();
+				i = 0;
+				literal = 0;
 			}
+			if (i == window.limit ()) {
+				break;
+			}
+			block.limit (window.limit ()).position (i);
+			final int length = cdc ? chunker.next (block) : Integer.min (sizeBlock, block.remaining ());
+			block.limit (i + length);
+			final long baseOffset = find (block, base, hash);
+			blocks++;
+			if (baseOffset == BlockIndex.NOT_FOUND) {
+				if (matchBase != BlockIndex.NOT_FOUND && literal == i) {
+					final long baseEnd = matchBase + matchLength;
+					final int k = Mismatch.prefix (base.slice (baseEnd, (int) Long.min (Long.min (length,
+						base.endOf (matchBase) - baseEnd), Integer.MAX_VALUE - matchLength)), block);
+					matchLength += k;
+					matchExtended |= k > 0;
+					literal = i + k;
+				}
+			} else {
+				matched++;
+				final int checksum = checksum (block, hash);
+				final int n = (int) Long.min (Long.min (i - literal, baseOffset - base.startOf (baseOffset)),
+					Integer.MAX_VALUE - length);
+				final int k = Mismatch.suffix (base.slice (baseOffset - n, n), slice (window, i - n, i));
+				writeMatch (writer, base, matchBase, matchLength, matchExtended, matchChecksum);
+				if (literal < i - k) {
+					writer.literal (slice (window, literal, i - k), true);
+				}
+				matchBase = baseOffset - k;
+				matchLength = length + k;
+				matchChecksum = checksum;
+				matchExtended = k > 0;
+				literal = i + length;
+			}
+			i += length;
+		}
+		writeMatch (writer, base, matchBase, matchLength, matchExtended, matchChecksum);
+		if (literal < window.limit ()) {
+			writer.literal (slice (window, literal, window.limit ()), true);
+		}
+		metrics.count ("targetBlocks", blocks);
+		metrics.count ("matchedBlocks", matched);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return buffer[from, to), position 0 */
+	private static ByteBuffer slice (final ByteBuffer buffer, final int from, final int to) {
+		final ByteBuffer b = buffer.duplicate ();
+		b.limit (to).position (from);
+		return b.slice ();
+	}
+
+	//------------------------------------------------------------------------
+	private static void writeMatch (final SectionWriter writer, final Bases base, final long baseOffset,
+		final int length, final boolean extended, final int checksum) throws IOException, InterruptedException {
+		if (baseOffset != BlockIndex.NOT_FOUND) {
+			writer.copy (baseOffset, length,
+				extended ? ByteBuffer.wrap (md5 (base, baseOffset, length)).getInt () : checksum);
 		}
 	}
 
 	//------------------------------------------------------------------------
-	private void diff () throws IOException, DecoderException {
-		try (RandomAccessFile inTarget = new RandomAccessFile (options.pathTarget.toFile (), "r");
-			DataOutputStream outDiff = new DataOutputStream (Files.newOutputStream (options.pathDiff, WRITE))) {
+	/**
+	 * Sections in target order, written after the header: copies continued in base are merged into one CP section,
+	 * literals are cut into DIFF sections cooked by the pool, at most 2 per thread ahead of the output.
+	 * A target size not known by the header is patched into it by {@link #finish}.
+	 */
+	private class SectionWriter implements Closeable {
+		/** Header offset of Target File Size */
+		private static final int SIZE_TARGET_OFFSET = 13;
+
+		private final Bases base;
+		private final ExecutorService pool;
+		private final SeekableByteChannel channel;
+		private final DataOutputStream outDiff;
+		/** Channel position of the header */
+		private final long start;
+		private final long sizeTarget;
+		// Compressed sections are cooked by the pool, then written in order
+		private final Deque<Pending> pending = new ArrayDeque<Pending> ();
+		private final boolean compress = options.compression != Compressions.NONE;
+		private final Codec codec = codec (options.compression);
+		// Codec chosen per section: shorter sections follow changes of content.
+		// Base as dictionary: one dictionary covers half a DEFLATE window before and after the section.
+		private final int sizeSection = options.compression == Compressions.AUTO ? MIN_SEGMENT_SIZE :
+			options.compression == Compressions.BASE ? Codecs.MAX_DICTIONARY_SIZE / 2 : MappedFile.MAX_SLICE;
+		/** Copy not written yet, as the next one may continue it */
+		private long copyOffset = BlockIndex.NOT_FOUND;
+		private int copyLength = 0, copyChecksum = 0;
+		private boolean copySingle = true;
+		// End of the last copy, in base and in target: literals after it are likely edits of the base after it
+		private long copyBase = 0, copyTarget = 0;
+		/** Target bytes passed so far */
+		private long offset = 0;
+
+		/** @param channel Written from its position on, left open */
+		SectionWriter (final Bases base, final ExecutorService pool, final SeekableByteChannel channel,
+			final long sizeTarget, final long timestamp, final byte[] permissions, final byte[] attributes)
+		throws IOException, DecoderException {
+			this.base = base;
+			this.pool = pool;
+			this.channel = channel;
+			this.sizeTarget = sizeTarget;
+			start = channel.position ();
+			outDiff = new DataOutputStream (new BufferedOutputStream (Channels.newOutputStream (channel), MIN_SEGMENT_SIZE));
 			outDiff.write (Hex.decodeHex ("ffd1ff00"));
 			outDiff.write (27);
-			outDiff.writeLong (Files.size (options.pathBase));
-			outDiff.writeLong (Files.size (options.pathTarget));
-			outDiff.writeLong (Files.getLastModifiedTime (options.pathTarget).toMillis ());
-			outDiff.write (IOUs.getFilePermissions (options.pathTarget));
-			outDiff.write (IOUs.getFileAttributes (options.pathTarget));
-
-			// TODO merge continue blocks
-			for (Entry<Long, UniHash> target1 : targetOffset2Hash.entrySet ()) {
-				Long baseOffset = baseHash2Offset.get (target1.getValue ());
-				if (baseOffset == null) {
-					diffDIFF (inTarget, outDiff, target1);
+			outDiff.writeLong (base.file (0).size ());
+			outDiff.writeLong (sizeTarget);
+			outDiff.writeLong (timestamp);
+			outDiff.write (permissions);
+			outDiff.write (attributes);
+			for (int id = 1 ; id < base.count () ; id++) {
+				diffBASE (outDiff, id, base.file (id).size ());
+			}
+		}
+
+		//------------------------------------------------------------------------
+		void copy (final long baseOffset, final int length, final int checksum) throws IOException, InterruptedException {
+			if (copyOffset != BlockIndex.NOT_FOUND && copyOffset + copyLength == baseOffset &&
+				(long) copyLength + length <= Integer.MAX_VALUE && base.id (copyOffset) == base.id (baseOffset)) {
+				copyLength += length;
+				copySingle = false;
+			} else {
+				flushCopy ();
+				copyOffset = baseOffset;
+				copyLength = length;
+				copyChecksum = checksum;
+				copySingle = true;
+			}
+			offset += length;
+		}
+
+		//------------------------------------------------------------------------
+		/** @param reused Literal bytes are overwritten after this call, so copied when written later */
+		void literal (final ByteBuffer literal, final boolean reused) throws IOException, InterruptedException {
+			flushCopy ();
+			final int length = literal.remaining ();
+			metrics.count ("literalBytes", length);
+			metrics.count ("diffSections", (length + sizeSection - 1) / sizeSection);
+			for (int k = 0 ; k < length ; k += sizeSection) {
+				final int from = literal.position () + k;
+				final ByteBuffer piece = slice (literal, from, from + (int) Long.min (sizeSection, length - k));
+				if (compress) {
+					final ByteBuffer raw = reused ? (ByteBuffer) ByteBuffer.allocate (piece.remaining ()).put (piece).flip () : piece;
+					final long expected = copyBase + offset + k - copyTarget;
+					// Patch reads dictionaries from the primary base only
+					final long sizeBase = base.file (0).size ();
+					final long dictionaryFrom = Long.max (0, Long.min (expected + sizeSection, sizeBase)
+						- Codecs.MAX_DICTIONARY_SIZE);
+					final int dictionaryLength = (int) Long.min (Codecs.MAX_DICTIONARY_SIZE, sizeBase - dictionaryFrom);
+					pending.add (new Pending (pool.submit (() ->
+						cook (raw, codec, base, dictionaryFrom, dictionaryLength)), raw));
+					drain (false);
 				} else {
-					diffCP (baseOffset, outDiff, target1);
+					diffDIFF (piece, outDiff, channel);
+				}
+			}
+			offset += length;
+		}
+
+		//------------------------------------------------------------------------
+		private void flushCopy () throws IOException, InterruptedException {
+			if (copyOffset == BlockIndex.NOT_FOUND) {
+				return;
+			}
+			metrics.count ("copySections", 1);
+			metrics.count ("copyBytes", copyLength);
+			if (pending.isEmpty ()) {
+				diffCP (outDiff, base, copyOffset, copyLength, copySingle, copyChecksum);
+			} else {
+				final ByteArrayOutputStream section = new ByteArrayOutputStream ();
+				diffCP (new DataOutputStream (section), base, copyOffset, copyLength, copySingle, copyChecksum);
+				pending.add (new Pending (CompletableFuture.completedFuture (section.toByteArray ()), null));
+				drain (false);
+			}
+			copyBase = copyOffset + copyLength;
+			copyTarget = offset;
+			copyOffset = BlockIndex.NOT_FOUND;
+		}
+
+		//------------------------------------------------------------------------
+		/** Write cooked sections in order, all of them or as long as the next one is done or too many wait */
+		private void drain (final boolean all) throws IOException, InterruptedException {
+			while (! pending.isEmpty () && (all || pending.size () > options.threads * 2 || pending.peek ().section.isDone ())) {
+				writePending (pending.poll (), outDiff, channel);
+			}
+		}
+
+		//------------------------------------------------------------------------
+		/** Write everything left, then the target size into the header if it was not known. @return Target size */
+		long finish () throws IOException, InterruptedException {
+			flushCopy ();
+			drain (true);
+			outDiff.flush ();
+			final long end = channel.position ();
+			metrics.set ("sizeDiff", end - start);
+			if (offset != sizeTarget) {
+				final ByteBuffer size = ByteBuffer.allocate (Long.BYTES).putLong (0, offset);
+				channel.position (start + SIZE_TARGET_OFFSET);
+				while (size.hasRemaining ()) {
+					channel.write (size);
 				}
+				channel.position (end);
+			}
+			return offset;
+		}
+
+		//------------------------------------------------------------------------
+		/** Flush, leaving the channel open to its owner */
+		@Override public void close () throws IOException {
+			outDiff.flush ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Section to be written in order */
+	private static class Pending {
+		/** Whole section, or null to write the literal as it is */
+		final Future<byte[]> section;
+		final ByteBuffer literal;
+
+		Pending (final Future<byte[]> section, final ByteBuffer literal) {
+			this.section = section;
+			this.literal = literal;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void writePending (final Pending p, final DataOutputStream outDiff, final WritableByteChannel channel)
+	throws IOException, InterruptedException {
+		final byte[] section = join (p.section);
+		if (section != null) {
+			outDiff.write (section);
+		} else {
+			diffDIFF (p.literal, outDiff, channel);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * CPMB from a base other than the primary one, else CP24 when offset and length fit, else CP32.
+	 * @param single Copy of one block, whose checksum is already known. Merged copies are hashed again from base.
+	 */
+	static void diffCP (final DataOutputStream outDiff, final Bases base,
+		final long baseOffset, final int length, final boolean single, final int checksum) throws IOException {
+		assert outDiff != null && base != null;
+		final int id = base.id (baseOffset);
+		if (id > 0) {
+			outDiff.writeBytes ("CPMB");
+			outDiff.write (28);
+			outDiff.write (id);
+			outDiff.write (OddByteLength.int7BE (baseOffset - base.start (id)));
+			outDiff.writeInt (length);
+			outDiff.write (md5 (base, baseOffset, length));
+		} else if (baseOffset <= MAX_CP24_OFFSET && length <= MAX_CP24_LENGTH) {
+			outDiff.writeBytes ("CP24");
+			outDiff.write (11);
+			outDiff.writeInt ((int) baseOffset);
+			outDiff.write (OddByteLength.int3BE (length));
+			if (single) {
+				outDiff.writeInt (checksum);
+			} else {
+				outDiff.write (md5 (base, baseOffset, length), 0, Integer.BYTES);
 			}
+		} else {
+			outDiff.writeBytes ("CP32");
+			outDiff.write (27);
+			outDiff.write (OddByteLength.int7BE (baseOffset));
+			outDiff.writeInt (length);
+			outDiff.write (md5 (base, baseOffset, length));
 		}
 	}
 
 	//------------------------------------------------------------------------
-	private void diffCP (final long baseOffset, final DataOutputStream outDiff, final Entry<Long, UniHash> target1)
-		throws IOException {
-		assert outDiff != null && target1 != null;
-		final UniHash hash = target1.getValue ();
+	/** Base other than the primary one, by its id in CPMB sections and its size to check it by */
+	private static void diffBASE (final DataOutputStream outDiff, final int id, final long size) throws IOException {
+		outDiff.writeBytes ("BASE");
+		outDiff.write (9);
+		outDiff.write (id);
+		outDiff.writeLong (size);
+	}
 
-		outDiff.writeBytes ("CP24");
-		outDiff.write (11);
-		outDiff.writeInt ((int) baseOffset); // TODO long -> int
-		final int length = hash.getLength ();
-		outDiff.write (OddByteLength.int3BE (length));
-		outDiff.write (Arrays.copyOf (hash.getMD5 (), 4));
+	//------------------------------------------------------------------------
+	/** MD5 of file[offset, offset + length), one mapped view at a time */
+	private static byte[] md5 (final Bases file, final long offset, final long length) throws IOException {
+		final MessageDigest md5 = DigestUtils.getMd5Digest ();
+		for (long i = 0 ; i < length ; i += MappedFile.MAX_SLICE) {
+			md5.update (file.slice (offset + i, (int) Long.min (MappedFile.MAX_SLICE, length - i)));
+		}
+		return md5.digest ();
 	}
 
 	//------------------------------------------------------------------------
-	private void diffDIFF
-	(final RandomAccessFile inTarget, final DataOutputStream outDiff, final Entry<Long, UniHash> target1)
+	/** @param literal Mapped target bytes, written as they are */
+	static void diffDIFF (final ByteBuffer literal, final DataOutputStream outDiff, final WritableByteChannel channel)
 	throws IOException {
-		assert outDiff != null && target1 != null;
-		final long offset = target1.getKey ();
-		final UniHash hash = target1.getValue ();
-
+		assert literal != null && outDiff != null && channel != null;
+		final int length = literal.remaining ();
 		outDiff.writeBytes ("DIFF");
-		outDiff.writeInt (hash.getLength () + 22);
+		outDiff.writeInt (length + 22);
 		outDiff.writeBytes ("NN"); // No compression, No encryption
-		outDiff.writeInt (hash.getLength ());
-		outDiff.write (hash.getMD5 ());
-		inTarget.seek (offset);
-		byte[] buffer = new byte [hash.getLength ()];
-		inTarget.readFully (buffer);
-		outDiff.write (buffer);
+		outDiff.writeInt (length);
+		outDiff.write (DigestUtils.digest (DigestUtils.getMd5Digest (), literal.duplicate ()));
+		IOUs.write (literal, outDiff, channel);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Codec of the compression option, or null to choose one for every section */
+	static Codec codec (final Compressions compression) {
+		switch (compression) {
+		case DEFLATE: return Codecs.get (Codecs.DEFLATE);
+		case LZMA:    return Codecs.get (Codecs.LZMA);
+		case BASE:    return Codecs.get (Codecs.BASE);
+		case AUTO:    return null;
+		default:      return Codecs.get (Codecs.NONE);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * @param codec null to choose one by {@link Codecs#choose}
+	 * @param dictionaryFrom Base offset of the preset dictionary, for a {@link DictionaryCodec} only
+	 * @return Whole DIFF section of the compressed literal, or null when compression saves nothing
+	 */
+	static byte[] cook (final ByteBuffer literal, Codec codec,
+		final Bases base, final long dictionaryFrom, final int dictionaryLength) throws IOException {
+		if (codec == null) {
+			codec = Codecs.choose (literal);
+		}
+		if (codec.getId () == Codecs.NONE) {
+			return null;
+		}
+		final int length = literal.remaining ();
+		final ByteArrayOutputStream section = new ByteArrayOutputStream (DIFF_HEADER_SIZE + length / 2);
+		section.write (new byte [DIFF_HEADER_SIZE], 0, DIFF_HEADER_SIZE);
+		if (codec instanceof DictionaryCodec) {
+			section.write (ByteBuffer.allocate (Long.BYTES + Integer.BYTES)
+				.putLong (dictionaryFrom).putInt (dictionaryLength).array ());
+			((DictionaryCodec) codec).compress (literal, base.slice (dictionaryFrom, dictionaryLength), section);
+		} else {
+			codec.compress (literal, section);
+		}
+		if (section.size () - DIFF_HEADER_SIZE >= length) {
+			return null;
+		}
+		final MessageDigest md5 = DigestUtils.getMd5Digest ();
+		md5.update (literal.duplicate ());
+		final byte[] b = section.toByteArray ();
+		ByteBuffer.wrap (b).put (DIFF).putInt (b.length - DIFF.length - Integer.BYTES)
+			.put ((byte) codec.getId ()).put ((byte) 'N').putInt (length).put (md5.digest ());
+		return b;
 	}
 
 	//------------------------------------------------------------------------
@@ -136,17 +1106,18 @@ class Diff {
 	//------------------------------------------------------------------------
 	private void writeDebugBase () throws IOException {
 		try (PrintWriter debug = new PrintWriter (Files.newOutputStream (pathDebugBase))) {
-			for (Entry<UniHash, Long> base1 : baseHash2Offset.entrySet ()) {
-				debug.format ("%d\t%s%n", base1.getValue (), base1.getKey ());
-			}
+			baseIndex.forEach ((key1, key2, length, offset) ->
+				debug.format ("%d\t%d\t%016x\t%016x%n", offset, length, key1, key2));
 		}
 	}
 
 	//------------------------------------------------------------------------
 	private void writeDebugTarget () throws IOException {
 		try (PrintWriter debug = new PrintWriter (Files.newOutputStream (pathDebugTarget))) {
-			for (Entry<Long, UniHash> target1 : targetOffset2Hash.entrySet ()) {
-				debug.format ("%d\t%s%n", target1.getKey (), target1.getValue ());
+			long offset = 0;
+			for (int i = 0 ; i < targetBlocks.size () ; i++) {
+				debug.format ("%d\t%d\t%08x%n", offset, targetBlocks.getLength (i), targetBlocks.getChecksum (i));
+				offset += targetBlocks.getLength (i);
 			}
 		}
 	}
@@ -155,12 +1126,15 @@ class Diff {
 	private void writeDebugDiff () throws IOException {
 		try (PrintWriter debug = new PrintWriter (Files.newOutputStream (pathDebugDiff, WRITE))) {
 			int total = 0;
-			for (Entry<Long, UniHash> target1 : targetOffset2Hash.entrySet ()) {
-				Long baseOffset = baseHash2Offset.get (target1.getValue ());
-				debug.printf ("%d\t%s\t%d%n", target1.getKey (), target1.getValue (), baseOffset);
-				if (baseOffset != null) {
+			long offset = 0;
+			for (int i = 0 ; i < targetBlocks.size () ; i++) {
+				final long baseOffset = targetBlocks.getBaseOffset (i);
+				debug.printf ("%d\t%d\t%08x\t%s%n", offset, targetBlocks.getLength (i), targetBlocks.getChecksum (i),
+					baseOffset == BlockIndex.NOT_FOUND ? "null" : baseOffset);
+				if (baseOffset != BlockIndex.NOT_FOUND) {
 					total++;
 				}
+				offset += targetBlocks.getLength (i);
 			}
 			debug.printf ("total: %,d%n", total);
 		}
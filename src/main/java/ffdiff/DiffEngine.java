@@ -0,0 +1,202 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.codec.DecoderException;
+
+import ffdiff.ArgsReader.Chunkings;
+import ffdiff.ArgsReader.Compressions;
+import ffdiff.ArgsReader.Hashes;
+import ffdiff.ArgsReader.IllegalArgsException;
+import ffdiff.ArgsReader.Modes;
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Diffs run in the calling JVM, with the settings of the command line.
+ * Thread safe: concurrent diffs share the worker pool of the engine, whose threads keep their buffers,
+ * codecs and digests from one diff to the next. Close the engine to stop its threads.
+ * Bases are files, as they are mapped and indexed; targets are files or streams.
+ */
+public class DiffEngine implements Closeable {
+
+	//------------------------------------------------------------------------
+	/** Settings of a {@link DiffEngine}, by the names and values of the command-line options */
+	public static class Builder {
+		private final Options options = new ArgsReader ().new Options ();
+
+		private Builder () {
+			options.mode = Modes.DIFF;
+		}
+
+		/** @param sizeBlock Bytes, at least 128, or 0 to derive it from base and target sizes at every diff (default) */
+		public Builder blockSize (final int sizeBlock) {
+			if (sizeBlock != 0 && sizeBlock < ArgsReader.MIN_BLOCK_SIZE) {
+				throw new IllegalArgumentException ("Illegal block size: " + sizeBlock);
+			}
+			options.sizeBlock = sizeBlock;
+			return this;
+		}
+
+		/** @param threads Worker threads shared by all diffs. Default: number of processors. */
+		public Builder threads (final int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException ("Illegal threads: " + threads);
+			}
+			options.threads = threads;
+			return this;
+		}
+
+		/** @param chunking fixed (default), rolling or cdc */
+		public Builder chunking (final String chunking) {
+			options.chunking = value (Chunkings.class, "chunking", chunking);
+			return this;
+		}
+
+		/** @param hash strong (default) or fast */
+		public Builder hash (final String hash) {
+			options.hash = value (Hashes.class, "hash", hash);
+			return this;
+		}
+
+		/** @param compression Codec of DIFF sections: none (default), deflate, lzma, auto or base */
+		public Builder compression (final String compression) {
+			options.compression = value (Compressions.class, "compression", compression);
+			return this;
+		}
+
+		public DiffEngine build () {
+			return new DiffEngine (options.copy ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Settings of every diff, completed by the files of each one */
+	private final Options options;
+	private final ExecutorService workers;
+
+	//------------------------------------------------------------------------
+	public static Builder builder () {
+		return new Builder ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Engine of command-line options; their files are given again to every diff */
+	DiffEngine (final Options o) {
+		Objects.requireNonNull (o);
+		options = o;
+		workers = Executors.newFixedThreadPool (o.threads);
+	}
+
+	//------------------------------------------------------------------------
+	/** Diff target file against base file into diff file */
+	public void diff (final Path base, final Path target, final Path diff) throws IOException, InterruptedException {
+		diff (Collections.singletonList (base), target, diff);
+	}
+
+	//------------------------------------------------------------------------
+	/** @param bases Primary base first, then older versions to copy blocks from. Patch needs the same bases. */
+	public void diff (final List<Path> bases, final Path target, final Path diff) throws IOException, InterruptedException {
+		final Options o = options (bases, Files.size (target));
+		o.pathTarget = target;
+		o.pathDiff = diff;
+		final Diff d = new Diff (o);
+		d.setWorkers (workers);
+		try {
+			d.run ();
+		} catch (DecoderException e) {
+			throw new IOException (e);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Diff a target stream in one pass, into a diff channel from its position on. Both are left open.
+	 * Rolling chunking needs a target file.
+	 */
+	public void diff (final List<Path> bases, final ReadableByteChannel target, final SeekableByteChannel diff)
+	throws IOException, InterruptedException {
+		final Options o = options (bases, 0);
+		final Diff d = new Diff (o);
+		d.setWorkers (workers);
+		try {
+			d.run (target, diff);
+		} catch (DecoderException e) {
+			throw new IOException (e);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Diff by complete options of the command line, against signatures of its bases, or null to index them
+	 * @param cached Whether the signatures were kept from an earlier diff, for the metrics
+	 */
+	void diff (final Options o, final SignatureCache.Signatures base, final boolean cached)
+	throws IOException, InterruptedException {
+		final Diff d = base == null ? new Diff (o) : new Diff (o, base);
+		d.setWorkers (workers);
+		if (cached) {
+			d.getMetrics ().set ("baseCached", 1);
+		}
+		try {
+			d.run ();
+		} catch (DecoderException e) {
+			throw new IOException (e);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Signatures of the bases of complete options, to share with later diffs */
+	SignatureCache.Signatures index (final Options o) throws IOException, InterruptedException {
+		final Diff d = new Diff (o);
+		d.setWorkers (workers);
+		return d.indexBase ();
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Options of one diff, block and chunk sizes derived from file sizes unless set */
+	private Options options (final List<Path> bases, final long sizeTarget) throws IOException {
+		if (bases.isEmpty () || bases.size () > ArgsReader.MAX_BASES) {
+			throw new IllegalArgumentException ("Bases should be 1 to " + ArgsReader.MAX_BASES);
+		}
+		final Options o = options.copy ();
+		o.pathBases = new ArrayList<Path> (bases);
+		o.pathBase = bases.get (0);
+		o.sizeBase = Files.size (o.pathBase);
+		o.sizeBases = 0;
+		for (Path p : bases) {
+			o.sizeBases += Files.size (p);
+		}
+		o.sizeTarget = sizeTarget;
+		final ArgsReader reader = new ArgsReader ();
+		try {
+			if (o.sizeBlock == 0) {
+				reader.calcBlockSize (o);
+			}
+			reader.calcChunkSize (o);
+		} catch (IllegalArgsException e) {
+			throw new IllegalArgumentException (e.getMessage ());
+		}
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Enum constant named like value, in any case */
+	static <E extends Enum<E>> E value (final Class<E> type, final String name, final String value) {
+		try {
+			return Enum.valueOf (type, value.toUpperCase (Locale.ROOT));
+		} catch (IllegalArgumentException | NullPointerException e) {
+			throw new IllegalArgumentException ("Illegal " + name + ": " + value);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Stop the worker threads; diffs still running fail */
+	@Override public void close () {
+		workers.shutdownNow ();
+	}
+
+}
@@ -0,0 +1,211 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Sequential reader of a diff file over a channel, buffered in one direct buffer.
+ * Raw data goes from the buffer, or straight from the file by {@link FileChannel#transferTo}, into the target channel.
+ */
+public class DiffReader {
+
+	//------------------------------------------------------------------------
+	private static final int sizeBuffer = 1024 * 1024;
+
+	//------------------------------------------------------------------------
+	private final ReadableByteChannel channel;
+	/** Read but not yet consumed bytes between position and limit */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect (sizeBuffer);
+	/** Consumed bytes */
+	private long position = 0;
+	private boolean eof = false;
+
+	public long position () {
+		return position;
+	}
+
+	//------------------------------------------------------------------------
+	public DiffReader (final ReadableByteChannel channel) {
+		this.channel = channel;
+		buffer.limit (0);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Whether at least n more bytes are there, reading on until then or end of stream */
+	public boolean hasRemaining (final int n) throws IOException {
+		assert n <= sizeBuffer;
+		if (buffer.remaining () < n && ! eof) {
+			buffer.compact ();
+			while (buffer.position () < n && ! eof) {
+				eof = channel.read (buffer) < 0;
+			}
+			buffer.flip ();
+		}
+		return buffer.remaining () >= n;
+	}
+
+	//------------------------------------------------------------------------
+	private void require (final int n) throws IOException {
+		if (! hasRemaining (n)) {
+			throw FormatUs.formatIOException ("Unexpected end of diff file (offset: %d)", position + buffer.remaining ());
+		}
+		position += n;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Unsigned byte */
+	public int read () throws IOException {
+		require (Byte.BYTES);
+		return buffer.get () & 0xff;
+	}
+
+	//------------------------------------------------------------------------
+	public int readInt () throws IOException {
+		require (Integer.BYTES);
+		return buffer.getInt ();
+	}
+
+	//------------------------------------------------------------------------
+	public long readLong () throws IOException {
+		require (Long.BYTES);
+		return buffer.getLong ();
+	}
+
+	//------------------------------------------------------------------------
+	public byte[] readBytes (final int length) throws IOException {
+		require (length);
+		final byte[] b = new byte [length];
+		buffer.get (b);
+		return b;
+	}
+
+	//------------------------------------------------------------------------
+	/** 3 bytes (24 bits) big-endian integer */
+	public int readInt3BE () throws IOException {
+		return OddByteLength.int3BE (readBytes (3));
+	}
+
+	//------------------------------------------------------------------------
+	/** 7 bytes (56 bits) big-endian integer */
+	public long readInt7BE () throws IOException {
+		return OddByteLength.int7BE (readBytes (7));
+	}
+
+	//------------------------------------------------------------------------
+	public String readUTF8String (final int length) throws IOException {
+		return new String (readBytes (length), StandardCharsets.UTF_8);
+	}
+
+	//------------------------------------------------------------------------
+	/** Copy the next length bytes as they are into out */
+	public void transferTo (final long length, final WritableByteChannel out) throws IOException {
+		transferTo (length, out, null);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Copy the next length bytes as they are into out.
+	 * @param digest Updated with the bytes, which then all go through the buffer. null for none.
+	 */
+	public void transferTo (long length, final WritableByteChannel out, final MessageDigest digest) throws IOException {
+		// Buffered part first
+		final ByteBuffer part = buffer.duplicate ();
+		part.limit (part.position () + (int) Long.min (part.remaining (), length));
+		final int sizePart = part.remaining ();
+		if (digest != null) {
+			digest.update (part.duplicate ());
+		}
+		while (part.hasRemaining ()) {
+			out.write (part);
+		}
+		buffer.position (part.position ());
+		position += sizePart;
+		length -= sizePart;
+
+		if (length > 0 && channel instanceof FileChannel && digest == null) {
+			final FileChannel file = (FileChannel) channel;
+			IOUs.transfer (file, file.position (), length, out);
+			file.position (file.position () + length);
+			position += length;
+		} else {
+			for (int n ; length > 0 ; length -= n) {
+				n = (int) Long.min (sizeBuffer, length);
+				require (n);
+				part.clear ().position (buffer.position ()).limit (buffer.position () + n);
+				if (digest != null) {
+					digest.update (part.duplicate ());
+				}
+				while (part.hasRemaining ()) {
+					out.write (part);
+				}
+				buffer.position (part.position ());
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Stream of the next length bytes. Not closing the reader. */
+	public InputStream stream (final long length) {
+		return new InputStream () {
+			private long remaining = length;
+
+			@Override public int read () throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				remaining--;
+				return DiffReader.this.read ();
+			}
+
+			@Override public int read (final byte[] b, final int off, final int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				if (! hasRemaining (1)) {
+					throw FormatUs.formatIOException ("Unexpected end of diff file (offset: %d)", position);
+				}
+				final int n = (int) Long.min (Long.min (len, remaining), buffer.remaining ());
+				buffer.get (b, off, n);
+				position += n;
+				remaining -= n;
+				return n;
+			}
+		};
+	}
+
+	//------------------------------------------------------------------------
+	public void skip (long length) throws IOException {
+		final int sizePart = (int) Long.min (buffer.remaining (), length);
+		buffer.position (buffer.position () + sizePart);
+		position += sizePart;
+		length -= sizePart;
+
+		if (length > 0 && channel instanceof FileChannel) {
+			final FileChannel file = (FileChannel) channel;
+			if (file.position () + length > file.size ()) {
+				throw FormatUs.formatIOException ("Unexpected end of diff file (offset: %d)", file.size ());
+			}
+			file.position (file.position () + length);
+			position += length;
+			return;
+		}
+		for (int n ; length > 0 ; length -= n) {
+			n = (int) Long.min (sizeBuffer, length);
+			require (n);
+			buffer.position (buffer.position () + n);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Go to an absolute position of a diff file */
+	public void seek (final long position) throws IOException {
+		((FileChannel) channel).position (position);
+		buffer.limit (0);
+		this.position = position;
+		eof = false;
+	}
+
+}
@@ -1,6 +1,8 @@
 package ffdiff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.DosFileAttributeView;
@@ -14,7 +16,9 @@ public class IOUs {
 
 	//------------------------------------------------------------------------
 	// Member constants
-	private static final int sizeBulkCopyBuffer = 1024 * 1024;
+	private static final int sizeDirectWrite = 64 * 1024;
+	private static final ThreadLocal<byte[]> scratchDirectWrite =
+		ThreadLocal.withInitial (() -> new byte [sizeDirectWrite]);
 
 	//------------------------------------------------------------------------
 	public static byte[] readBytea (final DataInputStream in, final int length) throws IOException {
@@ -35,14 +39,49 @@ public class IOUs {
 	}
 
 	//------------------------------------------------------------------------
-	public static void copy (final RandomAccessFile in, final OutputStream out, final long offset, final int length)
+	/**
+	 * Positional read until buffer is full or end of file.
+	 * @return Bytes read
+	 */
+	public static int read (final FileChannel in, final ByteBuffer buffer, final long position) throws IOException {
+		int total = 0;
+		for (int read = 0 ; buffer.hasRemaining () && read >= 0 ; total += Integer.max (read, 0)) {
+			read = in.read (buffer, position + total);
+		}
+		return total;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Write buffer remaining bytes to out. Large buffers go straight to the channel under out,
+	 * small ones through the stream buffer to save system calls.
+	 */
+	public static void write (final ByteBuffer buffer, final OutputStream out, final WritableByteChannel channel)
 	throws IOException {
-		byte[] buffer = new byte [sizeBulkCopyBuffer];
-		in.seek (offset);
-		for (int sizeBulk = 0, sizeRemain = length ; sizeRemain > 0 ; sizeRemain -= sizeBulk) {
-			sizeBulk = Integer.min (sizeBulkCopyBuffer, sizeRemain);
-			in.readFully (buffer, 0, sizeBulk);
-			out.write (buffer, 0, sizeBulk);
+		if (buffer.hasArray ()) {
+			out.write (buffer.array (), buffer.arrayOffset () + buffer.position (), buffer.remaining ());
+		} else if (buffer.remaining () >= sizeDirectWrite) {
+			out.flush ();
+			while (buffer.hasRemaining ()) {
+				channel.write (buffer);
+			}
+		} else {
+			final byte[] scratch = scratchDirectWrite.get ();
+			final int length = buffer.remaining ();
+			buffer.get (scratch, 0, length);
+			out.write (scratch, 0, length);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Copy in[offset, offset + length) to out by {@link FileChannel#transferTo}, no copy through the heap */
+	public static void transfer (final FileChannel in, final long offset, final long length,
+		final WritableByteChannel out) throws IOException {
+		for (long done = 0, n ; done < length ; done += n) {
+			n = in.transferTo (offset + done, length - done, out);
+			if (n <= 0) {
+				throw FormatUs.formatIOException ("Copy [%,d, +%,d) out of file size %,d", offset, length, in.size ());
+			}
 		}
 	}
 
@@ -51,7 +90,7 @@ public class IOUs {
 	public static byte[] getFilePermissions (final Path p) throws IOException {
 		BitSet bits = new BitSet (16);
 		if (p == null) {
-			return bits.toByteArray ();
+			return new byte [2];
 		}
 		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions (p);
 		bits.set (6 , permissions.contains (PosixFilePermission.OWNER_READ));
@@ -63,7 +102,7 @@ public class IOUs {
 		bits.set (14, permissions.contains (PosixFilePermission.OTHERS_READ));
 		bits.set (13, permissions.contains (PosixFilePermission.OTHERS_WRITE));
 		bits.set (12, permissions.contains (PosixFilePermission.OTHERS_EXECUTE));
-		return bits.toByteArray ();
+		return Arrays.copyOf (bits.toByteArray (), 2);
 	}
 
 	//------------------------------------------------------------------------
@@ -97,14 +136,14 @@ public class IOUs {
 	public static byte[] getFileAttributes (final Path p) throws IOException {
 		BitSet bits = new BitSet (8);
 		if (p == null) {
-			return bits.toByteArray ();
+			return new byte [1];
 		}
 		DosFileAttributes attrs = Files.readAttributes(p, DosFileAttributes.class);
 		bits.set (0, attrs.isReadOnly ());
 		bits.set (1, attrs.isArchive ());
 		bits.set (2, attrs.isSystem ());
 		bits.set (3, attrs.isHidden ());
-		return bits.toByteArray ();
+		return Arrays.copyOf (bits.toByteArray (), 1);
 	}
 
 	//------------------------------------------------------------------------
@@ -0,0 +1,84 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only memory mapped file of any size, mapped lazily in 1 GB windows.
+ * Every window also maps the first 16 MB of the next one, so slices up to 16 MB never need a copy.
+ * Slices are independent buffers, safe to take from several threads.
+ */
+public class MappedFile implements Closeable {
+
+	//------------------------------------------------------------------------
+	private static final int WINDOW_BITS = 30;
+	private static final long WINDOW_SIZE = 1L << WINDOW_BITS;
+	public static final int MAX_SLICE = 16 * 1024 * 1024;
+
+	//------------------------------------------------------------------------
+	private final FileChannel channel;
+	private final long size;
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+	public long size () {
+		return size;
+	}
+
+	//------------------------------------------------------------------------
+	public MappedFile (final Path path) throws IOException {
+		channel = FileChannel.open (path, StandardOpenOption.READ);
+		size = channel.size ();
+		windows = new AtomicReferenceArray<MappedByteBuffer> ((int) ((size + WINDOW_SIZE - 1) >>> WINDOW_BITS));
+	}
+
+	//------------------------------------------------------------------------
+	private MappedByteBuffer window (final int i) throws IOException {
+		MappedByteBuffer w = windows.get (i);
+		if (w == null) {
+			synchronized (windows) {
+				w = windows.get (i);
+				if (w == null) {
+					final long from = (long) i << WINDOW_BITS;
+					w = channel.map (FileChannel.MapMode.READ_ONLY, from, Long.min (WINDOW_SIZE + MAX_SLICE, size - from));
+					windows.set (i, w);
+				}
+			}
+		}
+		return w;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return file[offset, offset + length), position 0, limit length. Copied only if longer than 16 MB. */
+	public ByteBuffer slice (final long offset, final int length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			throw FormatUs.formatIOException ("Slice [%,d, +%,d) out of file size %,d", offset, length, size);
+		}
+		if (length == 0) {
+			return ByteBuffer.allocate (0);
+		}
+		final int i = (int) (offset >>> WINDOW_BITS), from = (int) (offset & (WINDOW_SIZE - 1));
+		if (length <= MAX_SLICE) {
+			ByteBuffer b = window (i).duplicate ();
+			b.limit (from + length).position (from);
+			return b.slice ();
+		}
+		ByteBuffer copy = ByteBuffer.allocate (length);
+		IOUs.read (channel, copy, offset);
+		copy.flip ();
+		return copy;
+	}
+
+	//------------------------------------------------------------------------
+	public byte get (final long offset) throws IOException {
+		return window ((int) (offset >>> WINDOW_BITS)).get ((int) (offset & (WINDOW_SIZE - 1)));
+	}
+
+	//------------------------------------------------------------------------
+	@Override public void close () throws IOException {
+		channel.close ();
+	}
+
+}
@@ -0,0 +1,218 @@
+package ffdiff;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Time and throughput of the phases of one diff or patch, and counters of what they did.
+ * Phases are also Flight Recorder events, counters too at the end, when both the build and the JVM have Flight Recorder.
+ * Written as a JSON summary by {@link #write}.
+ */
+class Metrics {
+
+	//------------------------------------------------------------------------
+	/** Flight Recorder events, null unless both the build and the JVM have them */
+	private static final Events EVENTS = events ();
+
+	//------------------------------------------------------------------------
+	/** Flight Recorder events of phases and counters, see MetricsEvents */
+	interface Events {
+		Object begin (String mode, String phase);
+		void commit (Object event, long bytes);
+		void counter (String mode, String name, long value);
+	}
+
+	//------------------------------------------------------------------------
+	/** Phase running until closed */
+	class Phase implements AutoCloseable {
+		final String name;
+		final long start = System.nanoTime ();
+		/** Bytes the phase goes through, for its throughput; may be set once known */
+		long bytes, end = 0;
+		private final Object event;
+
+		private Phase (final String name, final long bytes) {
+			this.name = name;
+			this.bytes = bytes;
+			event = EVENTS != null ? EVENTS.begin (mode, name) : null;
+		}
+
+		@Override public void close () {
+			end = System.nanoTime ();
+			if (event != null) {
+				EVENTS.commit (event, bytes);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private final String mode;
+	private final long start = System.nanoTime ();
+	private final List<Phase> phases = new CopyOnWriteArrayList<Phase> ();
+	/** Counters by name, in the order first counted */
+	private final Map<String, LongAdder> counters = Collections.synchronizedMap (new LinkedHashMap<String, LongAdder> ());
+	private final Map<String, Double> ratios = Collections.synchronizedMap (new LinkedHashMap<String, Double> ());
+
+	//------------------------------------------------------------------------
+	Metrics (final String mode) {
+		this.mode = mode;
+	}
+
+	//------------------------------------------------------------------------
+	/** @param bytes Bytes the phase goes through, for its throughput */
+	Phase phase (final String name, final long bytes) {
+		final Phase p = new Phase (name, bytes);
+		phases.add (p);
+		return p;
+	}
+
+	//------------------------------------------------------------------------
+	/** Add to a counter, from any thread */
+	void count (final String name, final long n) {
+		LongAdder counter = counters.get (name);
+		if (counter == null) {
+			synchronized (counters) {
+				counter = counters.computeIfAbsent (name, k -> new LongAdder ());
+			}
+		}
+		counter.add (n);
+	}
+
+	//------------------------------------------------------------------------
+	void set (final String name, final long value) {
+		synchronized (counters) {
+			counters.computeIfAbsent (name, k -> new LongAdder ()).reset ();
+			counters.get (name).add (value);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	void ratio (final String name, final double value) {
+		ratios.put (name, value);
+	}
+
+	//------------------------------------------------------------------------
+	long get (final String name) {
+		final LongAdder counter = counters.get (name);
+		return counter == null ? 0 : counter.sum ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Record peak memory, send counters to Flight Recorder, then write the summary if asked by options */
+	void finish (final Options o) throws IOException {
+		long heap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans ()) {
+			if (pool.getType () == MemoryType.HEAP) {
+				heap += pool.getPeakUsage ().getUsed ();
+			}
+		}
+		set ("peakHeapBytes", heap);
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans (BufferPoolMXBean.class)) {
+			if (pool.getName ().equals ("direct") || pool.getName ().equals ("mapped")) {
+				set (pool.getName () + "BufferBytes", pool.getMemoryUsed ());
+			}
+		}
+		if (EVENTS != null) {
+			synchronized (counters) {
+				counters.forEach ((name, value) -> EVENTS.counter (mode, name, value.sum ()));
+			}
+		}
+		if (o.pathMetrics != null) {
+			write (o);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Write the JSON summary to the metrics file */
+	private void write (final Options o) throws IOException {
+		final StringBuilder json = new StringBuilder ();
+		json.append ("{\n");
+		field (json, "mode", mode).append (",\n");
+		field (json, "base", o.pathBase).append (",\n");
+		field (json, "target", o.pathTarget).append (",\n");
+		field (json, "diff", o.pathDiff).append (",\n");
+		field (json, "sizeBase", o.sizeBase).append (",\n");
+		if (o.mode == ArgsReader.Modes.DIFF) {
+			field (json, "sizeTarget", o.sizeTarget).append (",\n");
+			field (json, "sizeBlock", o.sizeBlock).append (",\n");
+			field (json, "chunking", o.chunking).append (",\n");
+			field (json, "hash", o.hash).append (",\n");
+			field (json, "compression", o.compression).append (",\n");
+		} else {
+			field (json, "verify", o.verify).append (",\n");
+		}
+		field (json, "threads", o.threads).append (",\n");
+		field (json, "seconds", seconds (System.nanoTime () - start)).append (",\n");
+		json.append ("  \"phases\": [");
+		String separator = "\n";
+		for (Phase p : phases) {
+			final double seconds = seconds ((p.end == 0 ? System.nanoTime () : p.end) - p.start);
+			json.append (separator).append (String.format (Locale.ROOT,
+				"    {\"name\": %s, \"seconds\": %.6f, \"bytes\": %d, \"bytesPerSecond\": %.0f}",
+				string (p.name), seconds, p.bytes, seconds > 0 ? p.bytes / seconds : 0.0));
+			separator = ",\n";
+		}
+		json.append ("\n  ],\n  \"counters\": {");
+		separator = "\n";
+		synchronized (counters) {
+			for (Map.Entry<String, LongAdder> e : counters.entrySet ()) {
+				json.append (separator).append ("    ").append (string (e.getKey ())).append (": ").append (e.getValue ().sum ());
+				separator = ",\n";
+			}
+		}
+		synchronized (ratios) {
+			for (Map.Entry<String, Double> e : ratios.entrySet ()) {
+				json.append (separator).append ("    ").append (string (e.getKey ())).append (": ")
+					.append (String.format (Locale.ROOT, "%.6f", e.getValue ()));
+				separator = ",\n";
+			}
+		}
+		json.append ("\n  }\n}\n");
+		Files.write (o.pathMetrics, json.toString ().getBytes (StandardCharsets.UTF_8));
+	}
+
+	//------------------------------------------------------------------------
+	private static StringBuilder field (final StringBuilder json, final String name, final Object value) {
+		json.append ("  ").append (string (name)).append (": ");
+		return json.append (value == null ? "null" : value instanceof Number ? value.toString () : string (value.toString ()));
+	}
+
+	//------------------------------------------------------------------------
+	private static String string (final String s) {
+		final StringBuilder b = new StringBuilder (s.length () + 2).append ('"');
+		for (char c : s.toCharArray ()) {
+			if (c == '"' || c == '\\') {
+				b.append ('\\').append (c);
+			} else if (c < ' ') {
+				b.append (String.format ("\\u%04x", (int) c));
+			} else {
+				b.append (c);
+			}
+		}
+		return b.append ('"').toString ();
+	}
+
+	//------------------------------------------------------------------------
+	private static double seconds (final long nanos) {
+		return nanos / 1e9;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Flight Recorder events, or null when jdk.jfr or MetricsEvents is missing */
+	private static Events events () {
+		try {
+			Class.forName ("jdk.jfr.Event", false, Metrics.class.getClassLoader ());
+			return (Events) Class.forName ("ffdiff.MetricsEvents").getDeclaredConstructor ().newInstance ();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package ffdiff;
+
+import java.nio.*;
+
+/** Common prefix and suffix length of two buffers, compared 8 bytes at a time */
+public class Mismatch {
+
+	//------------------------------------------------------------------------
+	/** @return Length of the common prefix of a and b remaining bytes, positions unchanged */
+	public static int prefix (final ByteBuffer a, final ByteBuffer b) {
+		assert a.order () == b.order ();
+		final boolean big = a.order () == ByteOrder.BIG_ENDIAN;
+		final int n = Integer.min (a.remaining (), b.remaining ()), pa = a.position (), pb = b.position ();
+		int i = 0;
+		for (; i <= n - Long.BYTES ; i += Long.BYTES) {
+			final long x = a.getLong (pa + i) ^ b.getLong (pb + i);
+			if (x != 0) {
+				return i + (big ? Long.numberOfLeadingZeros (x) : Long.numberOfTrailingZeros (x)) / Byte.SIZE;
+			}
+		}
+		while (i < n && a.get (pa + i) == b.get (pb + i)) {
+			i++;
+		}
+		return i;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Length of the common suffix of a and b remaining bytes, positions unchanged */
+	public static int suffix (final ByteBuffer a, final ByteBuffer b) {
+		assert a.order () == b.order ();
+		final boolean big = a.order () == ByteOrder.BIG_ENDIAN;
+		final int n = Integer.min (a.remaining (), b.remaining ()), ea = a.limit (), eb = b.limit ();
+		int i = 0;
+		for (; i <= n - Long.BYTES ; i += Long.BYTES) {
+			final long x = a.getLong (ea - i - Long.BYTES) ^ b.getLong (eb - i - Long.BYTES);
+			if (x != 0) {
+				return i + (big ? Long.numberOfTrailingZeros (x) : Long.numberOfLeadingZeros (x)) / Byte.SIZE;
+			}
+		}
+		while (i < n && a.get (ea - 1 - i) == b.get (eb - 1 - i)) {
+			i++;
+		}
+		return i;
+	}
+
+}
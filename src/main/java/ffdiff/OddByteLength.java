@@ -36,6 +36,13 @@ public class OddByteLength {
 		return int3BE (b3);
 	}
 
+	//------------------------------------------------------------------------
+	/** 7 bytes (56 bits) big-endian integer */
+	public static byte[] int7BE (final long l) {
+		ByteBuffer b = ByteBuffer.allocate (Long.BYTES).order (ByteOrder.BIG_ENDIAN).putLong (l);
+		return Arrays.copyOfRange (b.array (), 1, Long.BYTES);
+	}
+
 	//------------------------------------------------------------------------
 	/** 7 bytes (56 bits) integer in big-endian */
 	public static long int7BE (final byte[] b) {
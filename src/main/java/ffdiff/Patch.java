@@ -1,79 +1,368 @@
 package ffdiff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.Callable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+
 import ffdiff.ArgsReader.Options;
+import ffdiff.ArgsReader.Verifications;
 
 /** Target file creation */
 class Patch {
 
 	//------------------------------------------------------------------------
 	// Member constants
-	private static final PrintStream stdout = System.out;
 	private static final OpenOption[] WRITE = new OpenOption[]
-		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING },
+		{ StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE },
 		READ = new OpenOption[] { StandardOpenOption.READ };
 	private static final Path pathDebugPatch = Paths.get ("patch.debug");
+	private static final int sizeLiteralBuffer = 1024 * 1024, sizeSectionName = 4;
+	/** One section in SAMPLE_RATE verified by sample */
+	private static final int SAMPLE_RATE = 16;
 
 	//------------------------------------------------------------------------
 	// Member variables
 	private PrintStream outDebug = null;
+	/** Messages, out of the way of a target written to standard output */
+	private PrintStream console = System.out;
 	private ArgsReader.Options options = null;
 	private long targetTimestamp = 0;
 	private Set<PosixFilePermission> targetPermissions = null;
 	private DosFileAttributes targetAttributes = null;
-	private long processedDIFF = 0;
+	private long targetSize = 0;
+	private final Map<String, SectionPatcher> patchers = new HashMap<String, SectionPatcher> ();
+	/** Section checksums, null to verify none */
+	private Verifier verifier = null;
+	/** Bases, and diff file to read stored literals again, for the verifier. Diff is null when a stream. */
+	private Bases baseFiles = null;
+	private MappedFile diffFile = null;
+	/** All bases by id of BASE and CPMB sections, the primary one first */
+	private FileChannel[] inBases = null;
+	/** File next to target patched into, moved over target once patched and verified */
+	private Path pathPatched = null;
+	private final AtomicLong sections = new AtomicLong ();
+	private final Metrics metrics = new Metrics ("patch");
+	/** End of the last copy from every base, per worker: a copy starting elsewhere is a seek */
+	private final ThreadLocal<long[]> copyEnds = ThreadLocal.withInitial (() -> new long [inBases.length]);
+	/** Pools kept by an engine between runs, null for pools of each run */
+	private ExecutorService workers = null, verifiers = null;
+	/** Decompressed literal data on its way to target, one per worker */
+	private static final ThreadLocal<ByteBuffer> literals =
+		ThreadLocal.withInitial (() -> ByteBuffer.allocate (sizeLiteralBuffer));
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial (DigestUtils::getMd5Digest);
 
 	//------------------------------------------------------------------------
 	Patch (final Options o) {
 		Objects.requireNonNull (o);
 		options = o;
+		patchers.put ("CP24", this::patchCP24);
+		patchers.put ("CP32", this::patchCP32);
+		patchers.put ("DIFF", this::patchDIFF);
+		patchers.put ("BASE", this::patchBASE);
+		patchers.put ("CPMB", this::patchCPMB);
 	}
 
 	//------------------------------------------------------------------------
+	/** @return Phases and counters of the run */
+	Metrics getMetrics () {
+		return metrics;
+	}
+
+	/** Run in the given pools, left running, instead of pools of its own */
+	void setPools (final ExecutorService workers, final ExecutorService verifiers) {
+		this.workers = workers;
+		this.verifiers = verifiers;
+	}
+
+	/** Messages go to console, standard output by default */
+	void setConsole (final PrintStream console) {
+		this.console = console;
+	}
+
+	//------------------------------------------------------------------------
+	/** Patch diff file into target file, sections in parallel when threads allow, then set target metadata */
 	public void run () throws Exception {
-		try (RandomAccessFile inBase = new RandomAccessFile (options.pathBase.toFile (), "r");
-		DataInputStream inDiff = new DataInputStream (Files.newInputStream (options.pathDiff, READ));
-		DataOutputStream outTarget = new DataOutputStream (Files.newOutputStream (options.pathTarget, WRITE));
-		PrintStream outDebug = options.verbose ? new PrintStream (Files.newOutputStream (pathDebugPatch, WRITE)):null) {
-			this.outDebug = outDebug;
+		try (FileChannel inDiff = FileChannel.open (options.pathDiff, READ)) {
+			run (inDiff, true);
+		}
+	}
 
-			processedDIFF = patchHeader (inBase, inDiff, outTarget);
-			final int sizeSectionName = 4;
-			Map<String, Callable<Long>> table = new HashMap<String, Callable<Long>> ();
-			table.put ("CP24", () -> patchCP24 (inBase, inDiff, outTarget));
-			table.put ("CP32", () -> patchCP32 (inBase, inDiff, outTarget));
-			table.put ("DIFF", () -> patchDIFF (inBase, inDiff, outTarget));
-
-			while (inDiff.available () >= sizeSectionName) {
-				final String section = IOUs.readUTF8String (inDiff, sizeSectionName);
-				processedDIFF += sizeSectionName;
-				if (table.get (section) != null) {
-					processedDIFF += table.get (section).call ();
-				} else {
-					throw FormatUs.formatIOException ("Unknown section name: %s (offset: %d)", section, processedDIFF);
-				}
+	//------------------------------------------------------------------------
+	/** Patch a diff stream into target file in one pass, leaving the stream open, then set target metadata */
+	public void run (final ReadableByteChannel inDiff) throws Exception {
+		run (inDiff, false);
+	}
+
+	//------------------------------------------------------------------------
+	private void run (final ReadableByteChannel inDiff, final boolean diffFile) throws Exception {
+		// A failed patch or verification leaves target as it was, not half written or corrupt
+		final Path target = options.pathTarget.toAbsolutePath ();
+		pathPatched = Files.createTempFile (target.getParent (), target.getFileName () + ".", ".tmp");
+		try {
+			try (FileChannel outTarget = FileChannel.open (pathPatched, WRITE)) {
+				patch (inDiff, outTarget, diffFile);
 			}
+			Files.move (pathPatched, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists (pathPatched);
 		}
-
-		stdout.printf ("set target timestamp: %d (%s)%n", targetTimestamp, FormatUs.iso8601 (targetTimestamp));
+		console.printf ("set target timestamp: %d (%s)%n", targetTimestamp, FormatUs.iso8601 (targetTimestamp));
 		Files.setLastModifiedTime (options.pathTarget, FileTime.fromMillis (targetTimestamp));
-		stdout.printf ("set target POSIX style permissions: %s%n", FormatUs.formatFilePermissions (targetPermissions));
+		console.printf ("set target POSIX style permissions: %s%n", FormatUs.formatFilePermissions (targetPermissions));
 		Files.setPosixFilePermissions (options.pathTarget, targetPermissions);
-		stdout.printf ("set target Windows style attributes: %s%n", FormatUs.formatFileAttributes (targetAttributes));
+		console.printf ("set target Windows style attributes: %s%n", FormatUs.formatFileAttributes (targetAttributes));
 		IOUs.setFileAttributes (options.pathTarget, targetAttributes);
+		metrics.finish (options);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Patch a diff stream into a target stream in one pass, leaving both open. Target metadata is not set.
+	 * A target FileChannel gets copies from base by transferTo.
+	 * What was written stays written when verification fails: the caller discards it.
+	 */
+	public void run (final ReadableByteChannel inDiff, final WritableByteChannel outTarget) throws Exception {
+		patch (inDiff, outTarget, false);
+		console.printf ("target is a stream: timestamp, permissions and attributes not set%n");
+		metrics.finish (options);
+	}
+
+	//------------------------------------------------------------------------
+	/** @param files Diff and target are the files of options, so batches of sections can open them again */
+	private void patch (final ReadableByteChannel inDiffChannel, final WritableByteChannel outTarget,
+		final boolean files) throws Exception {
+		try (FileChannel inBase = FileChannel.open (options.pathBase, READ)) {
+			openBases (inBase);
+			try {
+				patch (inBase, inDiffChannel, outTarget, files);
+			} finally {
+				closeBases ();
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void patch (final FileChannel inBase, final ReadableByteChannel inDiffChannel,
+		final WritableByteChannel outTarget, final boolean files) throws Exception {
+		try (PrintStream outDebug = options.verbose ? new PrintStream (Files.newOutputStream (pathDebugPatch, WRITE)):null;
+		Verifier verifier = options.verify == Verifications.OFF ? null :
+			verifiers != null ? new Verifier (verifiers, options.threads) : new Verifier (options.threads);
+		Bases baseFiles = verifier == null ? null : new Bases (options.pathBases);
+		MappedFile diffFile = verifier == null || ! files ? null : new MappedFile (options.pathDiff)) {
+			this.outDebug = outDebug;
+			this.verifier = verifier;
+			this.baseFiles = baseFiles;
+			this.diffFile = diffFile;
+			// DiffReader reads a FileChannel by position, any other channel as a stream
+			final DiffReader inDiff = new DiffReader (inDiffChannel);
+
+			patchHeader (inBase, inDiff, outTarget);
+			if (options.threads > 1 && files) {
+				patchParallel (inBase, inDiff, (FileChannel) outTarget);
+			} else {
+				// Sections until the end of the diff stream, which should come right after the last one
+				try (Metrics.Phase phase = metrics.phase ("patch", targetSize)) {
+					long sizeTarget = 0;
+					while (inDiff.hasRemaining (sizeSectionName)) {
+						sizeTarget += patchSection (inBase, inDiff, outTarget);
+					}
+					checkTargetSize (sizeTarget);
+					phase.bytes = sizeTarget;
+				}
+			}
+			if (verifier != null) {
+				final Metrics.Phase verifying = metrics.phase ("verify", targetSize);
+				verifier.finish ();
+				verifying.close ();
+				metrics.set ("verifiedSections", verifier.getVerified ());
+				console.printf ("verified sections: %,d%n", verifier.getVerified ());
+			}
+			metrics.set ("sizeDiff", inDiff.position ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Open bases other than the primary one, all closed again if one fails */
+	private void openBases (final FileChannel inBase) throws IOException {
+		inBases = new FileChannel [options.pathBases.size ()];
+		inBases[0] = inBase;
+		try {
+			for (int id = 1 ; id < inBases.length ; id++) {
+				inBases[id] = FileChannel.open (options.pathBases.get (id), READ);
+			}
+		} catch (IOException e) {
+			closeBases ();
+			throw e;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Close bases other than the primary one */
+	private void closeBases () throws IOException {
+		for (int id = 1 ; id < inBases.length ; id++) {
+			if (inBases[id] != null) {
+				inBases[id].close ();
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private interface SectionPatcher {
+		/** @return Target data length */
+		long patch (FileChannel inBase, DiffReader inDiff, WritableByteChannel outTarget)
+		throws IOException, InterruptedException;
+	}
+
+	//------------------------------------------------------------------------
+	/** Read section name, then patch the section at the target channel position */
+	private long patchSection (final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
+	throws IOException, InterruptedException {
+		if (verifier != null) {
+			verifier.check ();
+		}
+		final long offset = inDiff.position ();
+		final String section = inDiff.readUTF8String (sizeSectionName);
+		final SectionPatcher patcher = patchers.get (section);
+		if (patcher == null) {
+			throw FormatUs.formatIOException ("Unknown section name: %s (offset: %d)", section, offset);
+		}
+		metrics.count ("sections" + section, 1);
+		return patcher.patch (inBase, inDiff, outTarget);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Scan the diff into a section table with the target offset of every section,
+	 * then patch batches of sections in parallel, each worker with its own diff reader and target position.
+	 */
+	private void patchParallel (final FileChannel inBase, final DiffReader inDiff, final FileChannel outTarget)
+	throws IOException, InterruptedException {
+		int count = 0;
+		long[] diffOffsets = new long [1024], targetOffsets = new long [1024];
+		long sizeTarget = 0;
+		final Metrics.Phase scanning = metrics.phase ("scan sections", 0);
+		while (inDiff.hasRemaining (sizeSectionName)) {
+			if (count == diffOffsets.length) {
+				diffOffsets   = Arrays.copyOf (diffOffsets,   count * 2);
+				targetOffsets = Arrays.copyOf (targetOffsets, count * 2);
+			}
+			diffOffsets[count] = inDiff.position ();
+			targetOffsets[count++] = sizeTarget;
+			sizeTarget += scanSection (inDiff);
+		}
+		scanning.bytes = inDiff.position ();
+		scanning.close ();
+		checkTargetSize (sizeTarget);
+		if (sizeTarget > 0) {
+			outTarget.write (ByteBuffer.allocate (1), sizeTarget - 1);
+		}
+
+		// Batches of about equal target size, 4 per thread
+		final long sizeBatch = sizeTarget / (options.threads * 4L) + 1;
+		final ExecutorService pool = workers != null ? workers : Executors.newFixedThreadPool (options.threads);
+		final Metrics.Phase patching = metrics.phase ("patch", sizeTarget);
+		try {
+			final List<Future<Void>> batches = new ArrayList<Future<Void>> ();
+			final long[] diffOffsets1 = diffOffsets, targetOffsets1 = targetOffsets;
+			for (int from = 0, to ; from < count ; from = to) {
+				for (to = from + 1 ; to < count && targetOffsets[to] - targetOffsets[from] < sizeBatch ; to++);
+				final int from1 = from, to1 = to;
+				batches.add (pool.submit (() -> patchBatch (inBase, diffOffsets1, targetOffsets1, from1, to1)));
+			}
+			for (Future<Void> batch : batches) {
+				try {
+					batch.get ();
+				} catch (ExecutionException e) {
+					throw e.getCause () instanceof IOException ? (IOException) e.getCause () : new IOException (e.getCause ());
+				}
+			}
+		} finally {
+			patching.close ();
+			if (pool != workers) {
+				pool.shutdownNow ();
+			}
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void checkTargetSize (final long sizeTarget) throws IOException {
+		if (sizeTarget != targetSize) {
+			throw FormatUs.formatIOException ("Target size of sections (%,d) not equal to the value saved in diff file (%,d)",
+				sizeTarget, targetSize);
+		}
 	}
 
 	//------------------------------------------------------------------------
-	/** @return Processed DIFF data length */
-	private long patchHeader
-	(final RandomAccessFile inBase, final DataInputStream inDiff, final DataOutputStream outTarget)
+	/** Patch sections [from, to) of the section table */
+	private Void patchBatch (final FileChannel inBase, final long[] diffOffsets, final long[] targetOffsets,
+		final int from, final int to) throws IOException, InterruptedException {
+		try (FileChannel inDiffChannel = FileChannel.open (options.pathDiff, READ);
+			FileChannel outTarget = FileChannel.open (pathPatched, StandardOpenOption.WRITE)) {
+			final DiffReader inDiff = new DiffReader (inDiffChannel);
+			inDiff.seek (diffOffsets[from]);
+			outTarget.position (targetOffsets[from]);
+			metrics.count ("diffSeeks", 1);
+			for (int i = from ; i < to ; i++) {
+				patchSection (inBase, inDiff, outTarget);
+			}
+			if (verifier != null) {
+				verifier.flush ();
+			}
+		}
+		return null;
+	}
+
+	//------------------------------------------------------------------------
+	/** Read a section without patching it. @return Target data length */
+	private long scanSection (final DiffReader inDiff) throws IOException {
+		final long offset = inDiff.position ();
+		final String section = inDiff.readUTF8String (sizeSectionName);
+		switch (section) {
+		case "CP24": {
+			inDiff.skip (Byte.BYTES + Integer.BYTES);
+			final int length = inDiff.readInt3BE ();
+			inDiff.skip (Integer.BYTES);
+			return length;
+		}
+		case "CP32": {
+			inDiff.skip (Byte.BYTES + 7);
+			final int length = inDiff.readInt ();
+			inDiff.skip (16);
+			return length;
+		}
+		case "BASE":
+			inDiff.skip (Byte.BYTES * 2 + Long.BYTES);
+			return 0;
+		case "CPMB": {
+			inDiff.skip (Byte.BYTES * 2 + 7);
+			final int length = inDiff.readInt ();
+			inDiff.skip (16);
+			return length;
+		}
+		case "DIFF": {
+			final int sizeContent = inDiff.readInt ();
+			inDiff.skip (Byte.BYTES * 2);
+			final int length = inDiff.readInt ();
+			inDiff.skip (sizeContent - Byte.BYTES * 2 - Integer.BYTES);
+			return length;
+		}
+		default:
+			throw FormatUs.formatIOException ("Unknown section name: %s (offset: %d)", section, offset);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private void patchHeader
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
 	throws IOException {
 		assert inBase != null && inDiff != null && outTarget != null;
 		int magic = inDiff.readInt ();
@@ -84,103 +373,256 @@ class Patch {
 		int sizeContent = inDiff.read ();
 		long sizeBase = inDiff.readLong (), sizeTarget = inDiff.readLong ();
 		targetTimestamp = inDiff.readLong ();
-		targetPermissions = IOUs.parseFilePermissions (IOUs.readBytea (inDiff, 2));
+		targetPermissions = IOUs.parseFilePermissions (inDiff.readBytes (2));
 		targetAttributes = new IOUs.ParsedFileAttributes ((byte) inDiff.read ());
+		targetSize = sizeTarget;
 
 		if (sizeBase != options.sizeBase) {
 			throw FormatUs.formatIOException ("Base file size (%,d) not equal to the value saved in diff file (%,d)",
 				options.sizeBase, sizeBase);
 		}
-		stdout.printf ("target size: %,d | timestamp: %d (%s)%n",
+		console.printf ("target size: %,d | timestamp: %d (%s)%n",
 			sizeTarget, targetTimestamp, FormatUs.iso8601 (targetTimestamp));
 
 		int sizeOptional = sizeContent - Long.BYTES * 3 - Byte.BYTES * 3;
 		inDiff.skip (sizeOptional);
-		return Integer.BYTES + sizeContent;
 	}
 
 	//------------------------------------------------------------------------
-	/** @return Processed DIFF data length */
+	/** @return Target data length */
 	private long patchCP24
-	(final RandomAccessFile inBase, final DataInputStream inDiff, final DataOutputStream outTarget)
-	throws IOException {
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
+	throws IOException, InterruptedException {
 		assert inBase != null && inDiff != null && outTarget != null;
-		log ("%d: CP24%n", processedDIFF);
+		final long processedDIFF = inDiff.position () - sizeSectionName;
 
 		final int sizeContent = 11;
 		if (inDiff.read () != sizeContent) { // Section Content Size
 			throw FormatUs.formatIOException ("Wrong CP24 Section Content Size field value (offset: %d)", processedDIFF);
 		}
 		int offset = inDiff.readInt ();
-		int length = OddByteLength.readInt3BE (inDiff);
-		byte[] checksum = new byte [4];
-		inDiff.read (checksum);
+		int length = inDiff.readInt3BE ();
+		byte[] checksum = inDiff.readBytes (4);
 
-		log ("Section Content Size: %d | Copy Offset: %s | Copy Length: %s | Checksum: %s%n",
-			sizeContent, offset, length, Hex.encodeHexString (checksum));
+		log ("%d: CP24%nSection Content Size: %d | Copy Offset: %s | Copy Length: %s | Checksum: %s%n",
+			processedDIFF, sizeContent, offset, length, Hex.encodeHexString (checksum));
 
-		IOUs.copy (inBase, outTarget, offset, length);
-		// TODO checksum
-		return Byte.BYTES + sizeContent;
+		IOUs.transfer (inBase, offset, length, outTarget);
+		copied (0, offset, length);
+		if (verifying ()) {
+			verifier.submit (baseFiles.file (0), offset, length, checksum, "CP24", processedDIFF);
+		}
+		return length;
 	}
 
 	//------------------------------------------------------------------------
-	/** @return Processed DIFF data length */
+	/** @return Target data length */
 	private long patchCP32
-	(final RandomAccessFile inBase, final DataInputStream inDiff, final DataOutputStream outTarget)
-	throws IOException {
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
+	throws IOException, InterruptedException {
 		assert inBase != null && inDiff != null && outTarget != null;
-		log ("%d: CP32%n", processedDIFF);
+		final long processedDIFF = inDiff.position () - sizeSectionName;
 
 		final int sizeContent = 27;
 		if (inDiff.read () != sizeContent) { // Section Content Size
 			throw FormatUs.formatIOException ("Wrong CP32 Section Content Size field value (offset: %d)", processedDIFF);
 		}
-		long offset = OddByteLength.readInt7BE (inDiff);
+		long offset = inDiff.readInt7BE ();
 		int length = inDiff.readInt ();
-		byte[] checksum = new byte [16];
-		inDiff.read (checksum);
+		byte[] checksum = inDiff.readBytes (16);
 
-		log ("Section Content Size: %d | Copy Offset: %s | Copy Length: %s | Checksum: %s%n",
-			sizeContent, offset, length, Hex.encodeHexString (checksum));
+		log ("%d: CP32%nSection Content Size: %d | Copy Offset: %s | Copy Length: %s | Checksum: %s%n",
+			processedDIFF, sizeContent, offset, length, Hex.encodeHexString (checksum));
 
-		IOUs.copy (inBase, outTarget, offset, length);
-		// TODO checksum
-		return Byte.BYTES + sizeContent;
+		IOUs.transfer (inBase, offset, length, outTarget);
+		copied (0, offset, length);
+		if (verifying ()) {
+			verifier.submit (baseFiles.file (0), offset, length, checksum, "CP32", processedDIFF);
+		}
+		return length;
 	}
 
 	//------------------------------------------------------------------------
-	/** @return Processed DIFF data length */
-	private long patchDIFF
-	(final RandomAccessFile inBase, final DataInputStream inDiff, final DataOutputStream outTarget)
+	/** Check a base other than the primary one against the base given by the same -base order. @return 0 */
+	private long patchBASE
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
 	throws IOException {
+		final long processedDIFF = inDiff.position () - sizeSectionName;
+
+		final int sizeContent = 9;
+		if (inDiff.read () != sizeContent) { // Section Content Size
+			throw FormatUs.formatIOException ("Wrong BASE Section Content Size field value (offset: %d)", processedDIFF);
+		}
+		final int id = inDiff.read ();
+		final long size = inDiff.readLong ();
+
+		log ("%d: BASE%nSection Content Size: %d | Base Id: %d | Base Size: %d%n", processedDIFF, sizeContent, id, size);
+
+		if (id == 0 || id >= inBases.length) {
+			throw FormatUs.formatIOException ("Base %d of the diff not given: %d bases given (offset: %d)",
+				id, inBases.length, processedDIFF);
+		}
+		if (size != inBases[id].size ()) {
+			throw FormatUs.formatIOException ("Base %d file size (%,d) not equal to the value saved in diff file (%,d)",
+				id, inBases[id].size (), size);
+		}
+		return 0;
+	}
+
+	//------------------------------------------------------------------------
+	/** Copy from a base other than the primary one. @return Target data length */
+	private long patchCPMB
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
+	throws IOException, InterruptedException {
 		assert inBase != null && inDiff != null && outTarget != null;
-		log ("%d: DIFF%n", processedDIFF);
+		final long processedDIFF = inDiff.position () - sizeSectionName;
+
+		final int sizeContent = 28;
+		if (inDiff.read () != sizeContent) { // Section Content Size
+			throw FormatUs.formatIOException ("Wrong CPMB Section Content Size field value (offset: %d)", processedDIFF);
+		}
+		final int id = inDiff.read ();
+		final long offset = inDiff.readInt7BE ();
+		final int length = inDiff.readInt ();
+		final byte[] checksum = inDiff.readBytes (16);
+
+		log ("%d: CPMB%nSection Content Size: %d | Base Id: %d | Copy Offset: %s | Copy Length: %s | Checksum: %s%n",
+			processedDIFF, sizeContent, id, offset, length, Hex.encodeHexString (checksum));
+
+		if (id == 0 || id >= inBases.length) {
+			throw FormatUs.formatIOException ("Base %d of the diff not given: %d bases given (offset: %d)",
+				id, inBases.length, processedDIFF);
+		}
+		IOUs.transfer (inBases[id], offset, length, outTarget);
+		copied (id, offset, length);
+		if (verifying ()) {
+			verifier.submit (baseFiles.file (id), offset, length, checksum, "CPMB", processedDIFF);
+		}
+		return length;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Target data length */
+	private long patchDIFF
+	(final FileChannel inBase, final DiffReader inDiff, final WritableByteChannel outTarget)
+	throws IOException, InterruptedException {
+		assert inBase != null && inDiff != null && outTarget != null;
+		final long processedDIFF = inDiff.position () - sizeSectionName;
 
 		int sizeContent = inDiff.readInt ();
-		String compression = IOUs.readUTF8String (inDiff, 1);
-		if (! compression.equals ("N")) {
+		String compression = inDiff.readUTF8String (1);
+		final Codec codec = Codecs.get (compression.charAt (0));
+		if (codec == null) {
 			throw FormatUs.formatIOException ("Unsupported Compression Algorithm: %s (offset: %d)",
 				compression, processedDIFF);
 		}
-		// TODO Compression Algorithm
-		String encryption = IOUs.readUTF8String (inDiff, 1);
+		String encryption = inDiff.readUTF8String (1);
 		if (! encryption.equals ("N")) {
 			throw FormatUs.formatIOException ("Unsupported Encryption Algorithm: %s", encryption);
 		}
 		// TODO Encryption Algorithm
 		int sizeOriginalData = inDiff.readInt ();
-		byte[] checksum = new byte [16];
-		inDiff.read (checksum);
+		byte[] checksum = inDiff.readBytes (16);
 
-		log ("Section Content Size: %d | Compression Algorithm: %s | Encryption Algorithm: %s | " +
+		log ("%d: DIFF%nSection Content Size: %d | Compression Algorithm: %s | Encryption Algorithm: %s | " +
 			"Original Data Size: %d | Checksum: %s%n",
-			sizeContent, compression, encryption, sizeOriginalData, Hex.encodeHexString (checksum));
+			processedDIFF, sizeContent, compression, encryption, sizeOriginalData, Hex.encodeHexString (checksum));
 
-		IOUtils.copyLarge (inDiff, outTarget, 0, sizeOriginalData);
-		// TODO checksum
+		final long sizeCooked = sizeContent - Byte.BYTES * 2 - Integer.BYTES - checksum.length;
+		metrics.count ("literalBytes", sizeOriginalData);
+		metrics.count ("cookedBytes", sizeCooked);
+		final boolean verify = verifying ();
+		// Stored data read again from the diff file in the background; other data hashed on its way to target
+		final MessageDigest md5 = verify && (diffFile == null || codec.getId () != Codecs.NONE) ? digests.get () : null;
+		if (md5 != null) {
+			md5.reset ();
+		}
+		if (codec.getId () == Codecs.NONE) {
+			if (sizeCooked != sizeOriginalData) {
+				throw FormatUs.formatIOException ("Wrong DIFF Section Content Size field value (offset: %d)", processedDIFF);
+			}
+			if (verify && md5 == null) {
+				verifier.submit (diffFile, inDiff.position (), sizeOriginalData, checksum, "DIFF", processedDIFF);
+			}
+			inDiff.transferTo (sizeOriginalData, outTarget, md5);
+		} else {
+			// Streamed: cooked data read no further than the section, decompressed straight into target
+			final long end = inDiff.position () + sizeCooked;
+			final InputStream cooked = inDiff.stream (sizeCooked);
+			try (InputStream original = codec instanceof DictionaryCodec ?
+				((DictionaryCodec) codec).decompress (cooked, readDictionary (inBase, new DataInputStream (cooked))) :
+				codec.decompress (cooked)) {
+				final long sizeDecompressed = write (original, sizeOriginalData, outTarget, md5);
+				if (sizeDecompressed != sizeOriginalData) {
+					throw FormatUs.formatIOException ("Original data (%,d) shorter than Original Data Size (%,d) (offset: %d)",
+						sizeDecompressed, sizeOriginalData, processedDIFF);
+				}
+			}
+			inDiff.skip (end - inDiff.position ());
+		}
+		if (md5 != null) {
+			verifier.verify (md5.digest (), checksum, "DIFF", processedDIFF);
+		}
+		return sizeOriginalData;
+	}
 
-		return Integer.BYTES + sizeContent;
+	//------------------------------------------------------------------------
+	/**
+	 * @param digest Updated with the bytes written, null for none
+	 * @return Bytes of in written to out, up to length
+	 */
+	private long write (final InputStream in, final long length, final WritableByteChannel out,
+		final MessageDigest digest) throws IOException {
+		final ByteBuffer literal = literals.get ();
+		long done = 0;
+		for (int n ; done < length ; done += n) {
+			n = in.read (literal.array (), 0, (int) Long.min (literal.capacity (), length - done));
+			if (n < 0) {
+				break;
+			}
+			if (digest != null) {
+				digest.update (literal.array (), 0, n);
+			}
+			literal.clear ().limit (n);
+			while (literal.hasRemaining ()) {
+				out.write (literal);
+			}
+		}
+		return done;
+	}
+
+	//------------------------------------------------------------------------
+	/** Count a copy from base id, and a seek when it does not start where the last one of this worker ended */
+	private void copied (final int id, final long offset, final int length) {
+		final long[] ends = copyEnds.get ();
+		if (ends[id] != offset) {
+			metrics.count ("baseSeeks", 1);
+		}
+		ends[id] = offset + length;
+		metrics.count ("copyBytes", length);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Whether to verify the checksum of the next section */
+	private boolean verifying () {
+		switch (options.verify) {
+		case FULL:   return true;
+		case SAMPLE: return sections.getAndIncrement () % SAMPLE_RATE == 0;
+		default:     return false;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Read Dictionary Offset and Dictionary Length of cooked data, then the dictionary from base */
+	private byte[] readDictionary (final FileChannel inBase, final DataInputStream cooked) throws IOException {
+		final long offset = cooked.readLong ();
+		final int length = cooked.readInt ();
+		if (offset < 0 || length < 0 || length > Codecs.MAX_DICTIONARY_SIZE || offset + length > options.sizeBase) {
+			throw FormatUs.formatIOException ("Wrong dictionary [%,d, +%,d) of base size %,d", offset, length, options.sizeBase);
+		}
+		final ByteBuffer dictionary = ByteBuffer.allocate (length);
+		IOUs.read (inBase, dictionary, offset);
+		return dictionary.array ();
 	}
 
 	//------------------------------------------------------------------------
@@ -0,0 +1,169 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+import ffdiff.ArgsReader.Modes;
+import ffdiff.ArgsReader.Options;
+import ffdiff.ArgsReader.Verifications;
+
+/**
+ * Patches run in the calling JVM, with the settings of the command line.
+ * Thread safe: concurrent patches share the worker and verifier pools of the engine, whose threads keep
+ * their buffers, codecs and digests from one patch to the next. Close the engine to stop its threads.
+ * Bases are files; diffs and targets are files or streams.
+ */
+public class PatchEngine implements Closeable {
+
+	//------------------------------------------------------------------------
+	/** Settings of a {@link PatchEngine}, by the names and values of the command-line options */
+	public static class Builder {
+		private final Options options = new ArgsReader ().new Options ();
+		private PrintStream console = new PrintStream (NullOutputStream.NULL_OUTPUT_STREAM);
+
+		private Builder () {
+			options.mode = Modes.PATCH;
+		}
+
+		/** @param threads Threads patching sections of diff files, and as many verifying them. Default: number of processors. */
+		public Builder threads (final int threads) {
+			if (threads < 1) {
+				throw new IllegalArgumentException ("Illegal threads: " + threads);
+			}
+			options.threads = threads;
+			return this;
+		}
+
+		/** @param verify off, sample or full (default) */
+		public Builder verification (final String verify) {
+			options.verify = DiffEngine.value (Verifications.class, "verify", verify);
+			return this;
+		}
+
+		/** @param console Messages of every patch. Default: none. */
+		public Builder console (final PrintStream console) {
+			this.console = Objects.requireNonNull (console);
+			return this;
+		}
+
+		public PatchEngine build () {
+			return new PatchEngine (options.copy (), console);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Settings of every patch, completed by the files of each one */
+	private final Options options;
+	private final PrintStream console;
+	private final ExecutorService workers, verifiers;
+
+	//------------------------------------------------------------------------
+	public static Builder builder () {
+		return new Builder ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Engine of command-line options; their files are given again to every patch */
+	PatchEngine (final Options o, final PrintStream console) {
+		Objects.requireNonNull (o);
+		options = o;
+		this.console = console;
+		// Workers wait for verifiers, so they do not share threads
+		workers = Executors.newFixedThreadPool (o.threads);
+		verifiers = Executors.newFixedThreadPool (o.threads);
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Patch base file by diff file into target file, then set target timestamp, permissions and attributes.
+	 * An existing target is only replaced once patched and verified.
+	 */
+	public void patch (final Path base, final Path diff, final Path target) throws IOException, InterruptedException {
+		patch (Collections.singletonList (base), diff, target);
+	}
+
+	//------------------------------------------------------------------------
+	/** @param bases The bases of the diff, in the same order */
+	public void patch (final List<Path> bases, final Path diff, final Path target)
+	throws IOException, InterruptedException {
+		final Options o = options (bases);
+		o.pathDiff = diff;
+		o.pathTarget = target;
+		o.sizeDiff = Files.size (diff);
+		patch (o, console);
+	}
+
+	//------------------------------------------------------------------------
+	/** Patch files by complete options of the command line, messages to console */
+	void patch (final Options o, final PrintStream console) throws IOException, InterruptedException {
+		run (newPatch (o, console), p -> p.run ());
+	}
+
+	//------------------------------------------------------------------------
+	/** Patch by a diff stream, left open, into target file in one pass, then set target metadata */
+	public void patch (final List<Path> bases, final ReadableByteChannel diff, final Path target)
+	throws IOException, InterruptedException {
+		final Options o = options (bases);
+		o.pathTarget = target;
+		run (newPatch (o, console), p -> p.run (diff));
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Patch by a diff stream into a target stream in one pass, both left open. Target metadata is not set.
+	 * On a verification failure the target has already had what was patched: the caller discards it.
+	 */
+	public void patch (final List<Path> bases, final ReadableByteChannel diff, final WritableByteChannel target)
+	throws IOException, InterruptedException {
+		run (newPatch (options (bases), console), p -> p.run (diff, target));
+	}
+
+	//------------------------------------------------------------------------
+	private interface Run {
+		void run (Patch p) throws Exception;
+	}
+
+	//------------------------------------------------------------------------
+	private static void run (final Patch p, final Run run) throws IOException, InterruptedException {
+		try {
+			run.run (p);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException (e);
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private Patch newPatch (final Options o, final PrintStream console) {
+		final Patch p = new Patch (o);
+		p.setPools (workers, verifiers);
+		p.setConsole (console);
+		return p;
+	}
+
+	//------------------------------------------------------------------------
+	private Options options (final List<Path> bases) throws IOException {
+		if (bases.isEmpty () || bases.size () > ArgsReader.MAX_BASES) {
+			throw new IllegalArgumentException ("Bases should be 1 to " + ArgsReader.MAX_BASES);
+		}
+		final Options o = options.copy ();
+		o.pathBases = new ArrayList<Path> (bases);
+		o.pathBase = bases.get (0);
+		o.sizeBase = Files.size (o.pathBase);
+		return o;
+	}
+
+	//------------------------------------------------------------------------
+	/** Stop the worker and verifier threads; patches still running fail */
+	@Override public void close () {
+		workers.shutdownNow ();
+		verifiers.shutdownNow ();
+	}
+
+}
@@ -0,0 +1,46 @@
+package ffdiff;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** rsync style weak checksum (Adler-32 like) that rolls over a fixed size window one byte at a time */
+public class RollingChecksum {
+
+	//------------------------------------------------------------------------
+	private int a = 0, b = 0, size = 0;
+
+	//------------------------------------------------------------------------
+	/** Checksum of a whole window: buffer remaining bytes */
+	public static int of (final ByteBuffer raw) {
+		return new RollingChecksum ().reset (raw).get ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Start a new window: buffer remaining bytes, position unchanged */
+	public RollingChecksum reset (final ByteBuffer raw) {
+		Objects.requireNonNull (raw);
+		a = 0;
+		b = 0;
+		size = raw.remaining ();
+		for (int i = 0 ; i < size ; i++) {
+			final int x = raw.get (raw.position () + i) & 0xff;
+			a += x;
+			b += (size - i) * x;
+		}
+		return this;
+	}
+
+	//------------------------------------------------------------------------
+	/** Slide the window one byte: drop byte out from the head, append byte in to the tail */
+	public void roll (final byte out, final byte in) {
+		a += (in & 0xff) - (out & 0xff);
+		b += a - size * (out & 0xff);
+	}
+
+	//------------------------------------------------------------------------
+	/** Both sums in 32 bits: all of b above the narrow byte sum a, not only the low halves as rsync */
+	public int get () {
+		return (b << 12) ^ a;
+	}
+
+}
@@ -0,0 +1,275 @@
+package ffdiff;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import ffdiff.ArgsReader.Compressions;
+import ffdiff.ArgsReader.IllegalArgsException;
+import ffdiff.ArgsReader.Modes;
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Resident daemon running diff, patch and compose jobs sent by {@link Client}, without a JVM start per job.
+ * Jobs run on a bounded pool, each one once its rough memory estimate fits the budget.
+ * Base indexes stay cached for later diffs of the same bases and options, least recently used first out.
+ * <p>
+ * Loopback TCP, as Java 8 has no Unix-domain sockets. Port and a random token are published in
+ * {@link #DAEMON_FILE}, readable by its owner only; a request without the token is refused.
+ * <pre>
+ * Request:  token (UTF) | argument count (4) | command-line arguments (UTF each), paths absolute
+ * Response: status (1: 0 done, 1 failed) | messages length (4) | messages (UTF-8)
+ * </pre>
+ */
+class Server {
+
+	//------------------------------------------------------------------------
+	private static final PrintStream stdout = System.out, stderr = System.err;
+	/** Port and token of the running daemon */
+	static final Path DAEMON_FILE = Paths.get (System.getProperty ("user.home"), ".ffdiff", "daemon.properties");
+	static final String PORT = "port", TOKEN = "token";
+	private static final int MAX_ARGS = 1024, BACKLOG = 64;
+	/** Bytes of one DIFF section in memory */
+	private static final long SECTION = MappedFile.MAX_SLICE, MB = 1024 * 1024;
+
+	//------------------------------------------------------------------------
+	private final Options options;
+	private final String token;
+	private final DiffEngine diffs;
+	private final PatchEngine patches;
+	private final ExecutorService jobs, connections = Executors.newCachedThreadPool ();
+	/** Budget of running jobs, in megabytes */
+	private final Semaphore memory;
+	/** Base signatures by the keys of their bases and options, least recently used first */
+	private final LinkedHashMap<String, SignatureCache.Signatures> indexes =
+		new LinkedHashMap<String, SignatureCache.Signatures> (16, 0.75f, true);
+	private long sizeIndexes = 0;
+
+	//------------------------------------------------------------------------
+	Server (final Options o) {
+		Objects.requireNonNull (o);
+		options = o;
+		final byte[] random = new byte [16];
+		new SecureRandom ().nextBytes (random);
+		token = Hex.encodeHexString (random);
+		diffs = new DiffEngine (o);
+		patches = new PatchEngine (o, stdout);
+		jobs = Executors.newFixedThreadPool (o.jobs);
+		memory = new Semaphore ((int) (o.sizeMemory / MB), true);
+	}
+
+	//------------------------------------------------------------------------
+	/** Serve until the process ends */
+	public void run () throws IOException {
+		try (ServerSocket server = new ServerSocket (options.port, BACKLOG, InetAddress.getLoopbackAddress ())) {
+			publish (server.getLocalPort ());
+			stdout.printf ("daemon: %s | token in: %s%n", server.getLocalSocketAddress (), DAEMON_FILE);
+			for (;;) {
+				final Socket socket = server.accept ();
+				connections.execute (() -> serve (socket));
+			}
+		} finally {
+			Files.deleteIfExists (DAEMON_FILE);
+			connections.shutdownNow ();
+			jobs.shutdownNow ();
+			diffs.close ();
+			patches.close ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Write port and token, readable by the owner only, removed when the process ends */
+	private void publish (final int port) throws IOException {
+		Files.createDirectories (DAEMON_FILE.getParent ());
+		final Path temp = DAEMON_FILE.resolveSibling (DAEMON_FILE.getFileName () + ".tmp");
+		Files.deleteIfExists (temp);
+		try {
+			Files.createFile (temp, PosixFilePermissions.asFileAttribute (PosixFilePermissions.fromString ("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// No POSIX permissions: the home directory of the user protects the file
+			Files.createFile (temp);
+		}
+		final Properties p = new Properties ();
+		p.setProperty (PORT, Integer.toString (port));
+		p.setProperty (TOKEN, token);
+		try (OutputStream out = Files.newOutputStream (temp)) {
+			p.store (out, "ffdiff daemon");
+		}
+		Files.move (temp, DAEMON_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Runtime.getRuntime ().addShutdownHook (new Thread (() -> {
+			try {
+				Files.deleteIfExists (DAEMON_FILE);
+			} catch (IOException e) {
+				// Left for the next daemon to replace
+			}
+		}));
+	}
+
+	//------------------------------------------------------------------------
+	/** Read one request, run its job, answer with its messages */
+	private void serve (final Socket socket) {
+		final long start = System.currentTimeMillis ();
+		final ByteArrayOutputStream messages = new ByteArrayOutputStream ();
+		String job = "?";
+		try (Socket s = socket;
+			DataInputStream in = new DataInputStream (new BufferedInputStream (s.getInputStream ()));
+			DataOutputStream out = new DataOutputStream (new BufferedOutputStream (s.getOutputStream ()))) {
+			boolean done = false;
+			try (PrintStream console = new PrintStream (messages, true, StandardCharsets.UTF_8.name ())) {
+				final String[] args = read (in);
+				if (args == null) {
+					console.println ("Wrong daemon token");
+				} else {
+					job = String.join (" ", args);
+					done = job (args, console);
+				}
+			}
+			out.writeByte (done ? 0 : 1);
+			out.writeInt (messages.size ());
+			messages.writeTo (out);
+			out.flush ();
+			stdout.printf ("%s %s in %,.1f seconds: %s%n", FormatUs.iso8601 (start), done ? "done" : "failed",
+				(System.currentTimeMillis () - start) / 1000.0, job);
+		} catch (IOException e) {
+			stderr.printf ("%s request failed: %s%n", FormatUs.iso8601 (start), ExceptionUtils.getMessage (e));
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Arguments of a request, null when its token is wrong */
+	private String[] read (final DataInputStream in) throws IOException {
+		if (! MessageDigest.isEqual (in.readUTF ().getBytes (StandardCharsets.UTF_8), token.getBytes (StandardCharsets.UTF_8))) {
+			return null;
+		}
+		final int count = in.readInt ();
+		if (count < 0 || count > MAX_ARGS) {
+			throw FormatUs.formatIOException ("Wrong argument count: %d", count);
+		}
+		final String[] args = new String [count];
+		for (int i = 0 ; i < count ; i++) {
+			args[i] = in.readUTF ();
+		}
+		return args;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Whether the job is done; why not is told to console */
+	private boolean job (final String[] args, final PrintStream console) {
+		try {
+			final Options o = new ArgsReader ().read (args);
+			if (o == null || o.mode == Modes.SERVER || o.pathTargets != null || o.verbose
+				|| ArgsReader.isStream (o.pathTarget) || ArgsReader.isStream (o.pathDiff)) {
+				console.println ("Not a daemon job: run it in a process of its own");
+				return false;
+			}
+			CLI.showOptions (console, o);
+			final boolean indexed;
+			synchronized (indexes) {
+				indexed = o.mode == Modes.DIFF && indexes.containsKey (key (o));
+			}
+			final int megabytes = (int) Long.max (1, Long.min (estimate (o, indexed), options.sizeMemory) / MB);
+			final Future<Void> job = jobs.submit (() -> {
+				memory.acquire (megabytes);
+				try {
+					run (o, console);
+				} finally {
+					memory.release (megabytes);
+				}
+				return null;
+			});
+			try {
+				job.get ();
+			} catch (ExecutionException e) {
+				throw e.getCause () instanceof Exception ? (Exception) e.getCause () : e;
+			}
+			return true;
+		} catch (IllegalArgsException e) {
+			console.println (e.getMessage ());
+		} catch (Exception e) {
+			console.println (ExceptionUtils.getMessage (e));
+		}
+		return false;
+	}
+
+	//------------------------------------------------------------------------
+	private void run (final Options o, final PrintStream console) throws Exception {
+		switch (o.mode) {
+		case DIFF: {
+			final String key = key (o);
+			final SignatureCache.Signatures cached;
+			synchronized (indexes) {
+				cached = indexes.get (key);
+			}
+			diffs.diff (o, cached != null ? cached : index (key, o), cached != null);
+			break;
+		}
+		case PATCH:
+			patches.patch (o, console);
+			break;
+		default:
+			new Compose (o).run ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Rough bytes a job takes: a diff its base index unless cached, its target blocks and sections on their way;
+	 * a patch its literal and verifier buffers; a compose its pieces and literal buffer.
+	 */
+	private static long estimate (final Options o, final boolean indexed) {
+		switch (o.mode) {
+		case DIFF: {
+			final int sizeBlockExpected = o.chunking == ArgsReader.Chunkings.CDC ? o.sizeChunkAvg : o.sizeBlock;
+			final long index = indexed ? 0 : BlockIndex.bytes (o.sizeBases / sizeBlockExpected + 1);
+			final long blocks = o.sizeTarget / o.sizeBlock * 32;
+			return index + blocks + (o.compression == Compressions.NONE ? 1 : o.threads * 2) * SECTION;
+		}
+		case PATCH:
+			return o.threads * 5 * MB + SECTION;
+		default:
+			return o.sizeDiff * 4 + SECTION * 2;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Signatures of the bases of a diff, kept for later ones */
+	private SignatureCache.Signatures index (final String key, final Options o) throws IOException, InterruptedException {
+		final SignatureCache.Signatures signatures = diffs.index (o);
+		synchronized (indexes) {
+			if (indexes.put (key, signatures) == null) {
+				sizeIndexes += bytes (signatures);
+			}
+			// Running diffs keep the indexes they hold; the cache only lets go of them
+			for (Iterator<SignatureCache.Signatures> i = indexes.values ().iterator () ;
+				sizeIndexes > options.sizeIndexCache && i.hasNext () ;) {
+				sizeIndexes -= bytes (i.next ());
+				i.remove ();
+			}
+		}
+		return signatures;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Identity of all bases of a diff and of the options that shape their signatures */
+	private static String key (final Options o) throws IOException {
+		final StringBuilder key = new StringBuilder ();
+		for (Path p : o.pathBases) {
+			key.append (SignatureCache.key (p, o)).append ('\n');
+		}
+		return key.toString ();
+	}
+
+	//------------------------------------------------------------------------
+	private static long bytes (final SignatureCache.Signatures s) {
+		return (long) s.index.capacity () * BlockIndex.SLOT_BYTES + (s.weak == null ? 0 : s.weak.bytes ());
+	}
+
+}
@@ -0,0 +1,215 @@
+package ffdiff;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.stream.*;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import ffdiff.ArgsReader.Chunkings;
+import ffdiff.ArgsReader.Options;
+
+/**
+ * Base signatures saved by Diff in a cache directory, one file per base, mapped again by later runs.
+ * Keyed by the base path, size, modification time and inode, and by the options that shape the signatures,
+ * so a changed base is never matched. Least recently used files are evicted beyond the total size limit,
+ * never the one of the current run. Runs may share the directory: files gone or locked by another run are skipped.
+ *
+ * <pre>
+ * Magic "ffsig002" | byte order (1 little-endian) | key length (4) | key (UTF-8)
+ * | capacity (4) | size (4) | weak words (4) | index slots | weak filter words, all in native byte order
+ * </pre>
+ */
+class SignatureCache {
+
+	//------------------------------------------------------------------------
+	private static final byte[] MAGIC = "ffsig002".getBytes (StandardCharsets.US_ASCII);
+	private static final String EXT = ".ffsig";
+	private static final PrintStream stderr = System.err;
+	/** Files already warned of as over the size limit on their own */
+	private static final Set<Path> oversize = Collections.synchronizedSet (new HashSet<Path> ());
+
+	//------------------------------------------------------------------------
+	/** Signatures of one base */
+	static class Signatures {
+		final BlockIndex index;
+		/** Weak checksum filter, only for rolling chunking */
+		final WeakFilter weak;
+
+		Signatures (final BlockIndex index, final WeakFilter weak) {
+			this.index = index;
+			this.weak = weak;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	private final Path dir;
+	private final long sizeMax;
+
+	//------------------------------------------------------------------------
+	SignatureCache (final Path dir, final long sizeMax) {
+		this.dir = Objects.requireNonNull (dir);
+		this.sizeMax = sizeMax;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Identity of base and of the options that shape its signatures */
+	private static String key (final Options o) throws IOException {
+		return key (o.pathBase, o);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Identity of one base file and of the options that shape its signatures */
+	static String key (final Path path, final Options o) throws IOException {
+		final Path base = path.toRealPath ();
+		final BasicFileAttributes attributes = Files.readAttributes (base, BasicFileAttributes.class);
+		return String.format ("%s|%d|%d|%s|%d|%s|%d,%d,%d|%s", base, attributes.size (),
+			attributes.lastModifiedTime ().toMillis (), attributes.fileKey (),
+			o.sizeBlock, o.chunking, o.sizeChunkMin, o.sizeChunkAvg, o.sizeChunkMax, o.hash);
+	}
+
+	//------------------------------------------------------------------------
+	private Path path (final String key) {
+		return dir.resolve (DigestUtils.md5Hex (key) + EXT);
+	}
+
+	//------------------------------------------------------------------------
+	private static int sizeHeader (final byte[] key) {
+		return MAGIC.length + Byte.BYTES + Integer.BYTES + key.length + Integer.BYTES * 3;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Signatures mapped from the cache, or null when base is not there or has changed. Evict as {@link #save}. */
+	Signatures load (final Options o) throws IOException {
+		final String key = key (o);
+		final Path path = path (key);
+		if (! Files.isRegularFile (path)) {
+			return null;
+		}
+		try (FileChannel in = FileChannel.open (path, StandardOpenOption.READ)) {
+			final byte[] k = key.getBytes (StandardCharsets.UTF_8);
+			final ByteBuffer header = ByteBuffer.allocate (sizeHeader (k));
+			if (IOUs.read (in, header, 0) < header.capacity ()) {
+				return null;
+			}
+			header.flip ();
+			final byte[] magic = new byte [MAGIC.length], key1 = new byte [k.length];
+			header.get (magic);
+			final boolean little = header.get () == 1;
+			final int length = header.getInt ();
+			header.get (key1);
+			if (! Arrays.equals (magic, MAGIC) || little != (ByteOrder.nativeOrder () == ByteOrder.LITTLE_ENDIAN) ||
+				length != k.length || ! Arrays.equals (key1, k)) {
+				return null;
+			}
+			final int capacity = header.getInt (), size = header.getInt (), words = header.getInt ();
+			final long position = header.capacity (), sizeIndex = (long) capacity * BlockIndex.SLOT_BYTES;
+			if (in.size () != position + sizeIndex + (long) words * Long.BYTES) {
+				return null;
+			}
+			final BlockIndex index = BlockIndex.map (in, position, capacity, size);
+			WeakFilter weak = null;
+			if (o.chunking == Chunkings.ROLLING) {
+				final ByteBuffer b = ByteBuffer.allocate (words * Long.BYTES).order (ByteOrder.nativeOrder ());
+				IOUs.read (in, b, position + sizeIndex);
+				b.flip ();
+				final long[] w = new long [words];
+				b.asLongBuffer ().get (w);
+				weak = WeakFilter.valueOf (w);
+				if (weak == null) {
+					return null;
+				}
+			}
+			// Last used now, for eviction
+			Files.setLastModifiedTime (path, FileTime.fromMillis (System.currentTimeMillis ()));
+			evict (path);
+			return new Signatures (index, weak);
+		} catch (NoSuchFileException e) {
+			// Evicted by another run meanwhile
+			return null;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Save signatures of base through a temporary file, then evict least recently used files beyond the limit.
+	 * Not saved when another run holds the file it replaces, as Windows does not replace a mapped file.
+	 */
+	void save (final Options o, final BlockIndex index, final WeakFilter weak) throws IOException {
+		Files.createDirectories (dir);
+		final String key = key (o);
+		final byte[] k = key.getBytes (StandardCharsets.UTF_8);
+		final long[] words = weak == null ? new long [0] : weak.toLongArray ();
+		final Path temp = Files.createTempFile (dir, null, ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open (temp, StandardOpenOption.WRITE)) {
+				final ByteBuffer header = ByteBuffer.allocate (sizeHeader (k));
+				header.put (MAGIC).put ((byte) (ByteOrder.nativeOrder () == ByteOrder.LITTLE_ENDIAN ? 1 : 0))
+					.putInt (k.length).put (k).putInt (index.capacity ()).putInt (index.size ()).putInt (words.length);
+				header.flip ();
+				while (header.hasRemaining ()) {
+					out.write (header);
+				}
+				index.write (out);
+				final ByteBuffer b = ByteBuffer.allocate (words.length * Long.BYTES).order (ByteOrder.nativeOrder ());
+				b.asLongBuffer ().put (words);
+				while (b.hasRemaining ()) {
+					out.write (b);
+				}
+			}
+			try {
+				Files.move (temp, path (key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileSystemException e) {
+				// Left to a later run
+			}
+		} finally {
+			Files.deleteIfExists (temp);
+		}
+		evict (path (key));
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Delete least recently used files other than current until the total size is within the limit.
+	 * Files another run deletes or holds meanwhile are skipped.
+	 */
+	private void evict (final Path current) throws IOException {
+		final List<Path> files;
+		try (Stream<Path> list = Files.list (dir)) {
+			files = list.filter (p -> p.getFileName ().toString ().endsWith (EXT)).collect (Collectors.toList ());
+		}
+		final Map<Path, BasicFileAttributes> attributes = new HashMap<Path, BasicFileAttributes> ();
+		long total = 0;
+		for (Path p : files) {
+			try {
+				final BasicFileAttributes a = Files.readAttributes (p, BasicFileAttributes.class);
+				attributes.put (p, a);
+				total += a.size ();
+			} catch (NoSuchFileException e) {
+				// Evicted by another run
+			}
+		}
+		final BasicFileAttributes a = attributes.remove (current);
+		if (a != null && a.size () > sizeMax && oversize.add (current)) {
+			stderr.printf ("signature cache: %s of %,d bytes is over the cache size limit (%,d bytes), kept anyway%n",
+				current, a.size (), sizeMax);
+		}
+		final List<Path> evictable = new ArrayList<Path> (attributes.keySet ());
+		evictable.sort (Comparator.comparing (p -> attributes.get (p).lastModifiedTime ()));
+		for (Iterator<Path> i = evictable.iterator () ; total > sizeMax && i.hasNext () ;) {
+			final Path p = i.next ();
+			try {
+				Files.deleteIfExists (p);
+				total -= attributes.get (p).size ();
+			} catch (IOException e) {
+				// Mapped by another run where that prevents deletion: left for later
+			}
+		}
+	}
+
+}
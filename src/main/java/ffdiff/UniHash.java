@@ -1,42 +1,134 @@
 package ffdiff;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
 import java.util.*;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang3.Conversion;
 
-/** Length + MD5 + SHA1 = Unique hash in practice */
+/**
+ * Length + MD5 + SHA1 of a block. The base index stores and compares 128 bits of them,
+ * first 8 bytes of MD5 + first 8 bytes of SHA1, with the length: unique in practice.
+ * Fast hashes (-hash fast) do not use this class: xxHash64 with the length, then a byte by byte confirm.
+ * Digests are kept in primitive fields and computed by digest engines reused per thread,
+ * so a hash loop that {@link #reset} one instance allocates nothing per block.
+ */
 public class UniHash implements Comparable<UniHash> {
 
+	//------------------------------------------------------------------------
+	private static final int MD5_BYTES = 16, SHA1_BYTES = 20;
+
+	/** Digest engines and digest output of the current thread */
+	private static class Engines {
+		final MessageDigest md5 = DigestUtils.getMd5Digest (), sha1 = DigestUtils.getSha1Digest ();
+		final byte[] digest = new byte [SHA1_BYTES];
+	}
+	private static final ThreadLocal<Engines> engines = ThreadLocal.withInitial (Engines::new);
+
 	//------------------------------------------------------------------------
 	private int length;
-	private byte[] md5;
-	private byte[] sha1;
+	private long md5High, md5Low;
+	private long sha1High, sha1Mid;
+	private int sha1Low;
 
 	public int getLength () {
 		return length;
 	}
 	public byte[] getMD5 () {
-		return md5;
+		return ByteBuffer.allocate (MD5_BYTES).putLong (md5High).putLong (md5Low).array ();
 	}
 	public byte[] getSHA1 () {
-		return sha1;
+		return ByteBuffer.allocate (SHA1_BYTES).putLong (sha1High).putLong (sha1Mid).putInt (sha1Low).array ();
+	}
+	/** First 8 bytes of MD5 */
+	public long getKey1 () {
+		return md5High;
+	}
+	/** First 8 bytes of SHA1 */
+	public long getKey2 () {
+		return sha1High;
+	}
+	/** First 4 bytes of MD5 */
+	public int getChecksum () {
+		return (int) (md5High >>> Integer.SIZE);
+	}
+
+	//------------------------------------------------------------------------
+	/** Empty hash of nothing yet, to be {@link #reset} */
+	public UniHash () {
 	}
 
 	//------------------------------------------------------------------------
 	public UniHash (byte[] raw) {
-		Objects.requireNonNull (raw);
-		length = raw.length;
-		md5  = DigestUtils.md5  (raw);
-		sha1 = DigestUtils.sha1 (raw);
+		this (ByteBuffer.wrap (Objects.requireNonNull (raw)));
+	}
+
+	//------------------------------------------------------------------------
+	/** Hash buffer remaining bytes, position unchanged */
+	public UniHash (ByteBuffer raw) {
+		reset (raw);
 	}
 
 	//------------------------------------------------------------------------
 	public UniHash (byte[] raw, int from, int to) {
-		this (raw != null && from == 0 && to == raw.length ?
-			raw :
-			Arrays.copyOfRange (raw, from, to));
+		this (ByteBuffer.wrap (Objects.requireNonNull (raw), from, to - from));
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Hash buffer remaining bytes again into this instance, position unchanged.
+	 * @return this
+	 */
+	public UniHash reset (final ByteBuffer raw) {
+		Objects.requireNonNull (raw);
+		final Engines e = engines.get ();
+		final int position = raw.position ();
+		length = raw.remaining ();
+		e.md5.update (raw);
+		raw.position (position);
+		e.sha1.update (raw);
+		raw.position (position);
+
+		finish (e.md5, e.digest, MD5_BYTES);
+		md5High  = toLong (e.digest, 0);
+		md5Low   = toLong (e.digest, Long.BYTES);
+		finish (e.sha1, e.digest, SHA1_BYTES);
+		sha1High = toLong (e.digest, 0);
+		sha1Mid  = toLong (e.digest, Long.BYTES);
+		sha1Low  = (int) (toLong (e.digest, Integer.BYTES * 3) & 0xffffffffL);
+		return this;
+	}
+
+	//------------------------------------------------------------------------
+	/** First 4 bytes of MD5 of buffer remaining bytes, position unchanged, without SHA1 */
+	public static int checksum (final ByteBuffer raw) {
+		final Engines e = engines.get ();
+		final int position = raw.position ();
+		e.md5.update (raw);
+		raw.position (position);
+		finish (e.md5, e.digest, MD5_BYTES);
+		return (int) (toLong (e.digest, 0) >>> Integer.SIZE);
+	}
+
+	//------------------------------------------------------------------------
+	/** 8 bytes big-endian */
+	private static long toLong (final byte[] b, final int from) {
+		long l = 0;
+		for (int i = from ; i < from + Long.BYTES ; i++) {
+			l = (l << Byte.SIZE) | (b[i] & 0xff);
+		}
+		return l;
+	}
+
+	//------------------------------------------------------------------------
+	private static void finish (final MessageDigest engine, final byte[] digest, final int length) {
+		try {
+			engine.digest (digest, 0, length);
+		} catch (DigestException e) {
+			throw new IllegalStateException (e);
+		}
 	}
 
 	//------------------------------------------------------------------------
@@ -48,33 +140,29 @@ public class UniHash implements Comparable<UniHash> {
 			return false;
 		}
 		UniHash b0 = (UniHash) b;
-		return this.length == b0.getLength () &&
-			Arrays.equals (this.md5, b0.getMD5 ()) &&
-			Arrays.equals (this.sha1, b0.getSHA1 ());
+		return length == b0.length &&
+			md5High  == b0.md5High  && md5Low  == b0.md5Low &&
+			sha1High == b0.sha1High && sha1Mid == b0.sha1Mid && sha1Low == b0.sha1Low;
 	}
 
 	//------------------------------------------------------------------------
 	@Override public int hashCode () {
-		return Conversion.byteArrayToInt (md5, 0, 0, 0, Integer.BYTES);
+		return (int) md5High;
 	}
 
 	//------------------------------------------------------------------------
 	@Override public String toString () {
 		return String.format ("%d\t%s\t%s",
-			length, Hex.encodeHexString (md5), Hex.encodeHexString (sha1));
+			length, Hex.encodeHexString (getMD5 ()), Hex.encodeHexString (getSHA1 ()));
 	}
 
 	//------------------------------------------------------------------------
 	@Override public int compareTo (UniHash b) {
-		int lengthb = b.getLength ();
-		byte[] md5b = b.getMD5 ();
-		if (length != lengthb) {
-			return length - lengthb;
-		} else for (int i = 0 ; i < length ; i++) {
-			if (md5[i] != md5b[i]) {
-				return md5[i] - md5b[i];
-			}
+		if (length != b.length) {
+			return Integer.compare (length, b.length);
+		} else if (md5High != b.md5High) {
+			return Long.compare (md5High, b.md5High);
 		}
-		return 0;
+		return Long.compare (md5Low, b.md5Low);
 	}
 }
@@ -0,0 +1,180 @@
+package ffdiff;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Section checksums verified by a pool of its own, so patching goes on while copied bytes are hashed.
+ * Sections are verified in batches per patching thread, to keep the cost per section low for small blocks.
+ * The first mismatch is kept and thrown by the next {@link #check}, at the latest by {@link #finish}.
+ */
+class Verifier implements Closeable {
+
+	//------------------------------------------------------------------------
+	private static final int BATCH_SECTIONS = 1024, BATCH_BYTES = 4 * 1024 * 1024, MAX_PENDING_PER_THREAD = 4;
+
+	//------------------------------------------------------------------------
+	/** Sections submitted by one thread, not verified yet */
+	private static class Batch {
+		int size = 0;
+		long bytes = 0;
+		final MappedFile[] files = new MappedFile [BATCH_SECTIONS];
+		final long[] offsets = new long [BATCH_SECTIONS], lengths = new long [BATCH_SECTIONS];
+		final byte[][] checksums = new byte [BATCH_SECTIONS][];
+		final String[] sections = new String [BATCH_SECTIONS];
+		final long[] sectionOffsets = new long [BATCH_SECTIONS];
+	}
+
+	//------------------------------------------------------------------------
+	private final ExecutorService pool;
+	/** Whether the pool is this verifier's own, to shut down when closed */
+	private final boolean owned;
+	private final int maxPending;
+	private final Queue<Future<Void>> pending = new ConcurrentLinkedQueue<Future<Void>> ();
+	private final ThreadLocal<Batch> batches = ThreadLocal.withInitial (Batch::new);
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial (DigestUtils::getMd5Digest);
+	private final AtomicLong verified = new AtomicLong ();
+	private volatile IOException failure = null;
+
+	/** @return Sections verified so far */
+	public long getVerified () {
+		return verified.get ();
+	}
+
+	//------------------------------------------------------------------------
+	Verifier (final int threads) {
+		pool = Executors.newFixedThreadPool (threads);
+		owned = true;
+		maxPending = threads * MAX_PENDING_PER_THREAD;
+	}
+
+	//------------------------------------------------------------------------
+	/** Verify in a pool shared with other verifiers, left running when closed */
+	Verifier (final ExecutorService pool, final int threads) {
+		this.pool = pool;
+		owned = false;
+		maxPending = threads * MAX_PENDING_PER_THREAD;
+	}
+
+	//------------------------------------------------------------------------
+	/**
+	 * Verify MD5 of file[offset, offset + length) in the background.
+	 * @param checksum MD5, or its first bytes
+	 * @param section Section name and offset, to report a mismatch
+	 */
+	public void submit (final MappedFile file, final long offset, final long length, final byte[] checksum,
+		final String section, final long sectionOffset) throws IOException, InterruptedException {
+		check ();
+		final Batch batch = batches.get ();
+		final int i = batch.size++;
+		batch.files[i] = file;
+		batch.offsets[i] = offset;
+		batch.lengths[i] = length;
+		batch.checksums[i] = checksum;
+		batch.sections[i] = section;
+		batch.sectionOffsets[i] = sectionOffset;
+		batch.bytes += length;
+		if (batch.size == BATCH_SECTIONS || batch.bytes >= BATCH_BYTES) {
+			flush ();
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Hand the sections submitted by this thread to the pool, waiting first when too many batches are pending */
+	public void flush () throws IOException, InterruptedException {
+		final Batch batch = batches.get ();
+		if (batch.size == 0) {
+			return;
+		}
+		batches.remove ();
+		while (pending.size () >= maxPending) {
+			final Future<Void> head = pending.poll ();
+			if (head != null) {
+				await (head);
+			}
+		}
+		pending.add (pool.submit (() -> {
+			try {
+				final MessageDigest md5 = digests.get ();
+				md5.reset ();
+				for (int i = 0 ; i < batch.size ; i++) {
+					verify (md5 (md5, batch.files[i], batch.offsets[i], batch.lengths[i]),
+						batch.checksums[i], batch.sections[i], batch.sectionOffsets[i]);
+				}
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+				throw e;
+			}
+			return null;
+		}));
+	}
+
+	//------------------------------------------------------------------------
+	/** Compare a digest computed by the caller */
+	public void verify (final byte[] digest, final byte[] checksum, final String section, final long sectionOffset)
+	throws IOException {
+		if (! MessageDigest.isEqual (Arrays.copyOf (digest, checksum.length), checksum)) {
+			throw FormatUs.formatIOException ("%s section checksum mismatch (offset: %d). Expected: %s Got: %s",
+				section, sectionOffset, Hex.encodeHexString (checksum),
+				Hex.encodeHexString (Arrays.copyOf (digest, checksum.length)));
+		}
+		verified.incrementAndGet ();
+	}
+
+	//------------------------------------------------------------------------
+	/** Throw the first mismatch found so far, if any */
+	public void check () throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** Flush the sections of this thread, then wait for all pending verifications */
+	public void finish () throws IOException, InterruptedException {
+		flush ();
+		for (Future<Void> head ; (head = pending.poll ()) != null ;) {
+			await (head);
+		}
+		check ();
+	}
+
+	//------------------------------------------------------------------------
+	private void await (final Future<Void> future) throws IOException, InterruptedException {
+		try {
+			future.get ();
+		} catch (ExecutionException e) {
+			throw e.getCause () instanceof IOException ? (IOException) e.getCause () : new IOException (e.getCause ());
+		}
+	}
+
+	//------------------------------------------------------------------------
+	/** MD5 of file[offset, offset + length), one mapped view at a time */
+	private static byte[] md5 (final MessageDigest md5, final MappedFile file, final long offset, final long length)
+	throws IOException {
+		for (long i = 0 ; i < length ; i += MappedFile.MAX_SLICE) {
+			md5.update (file.slice (offset + i, (int) Long.min (MappedFile.MAX_SLICE, length - i)));
+		}
+		return md5.digest ();
+	}
+
+	//------------------------------------------------------------------------
+	@Override public void close () {
+		if (owned) {
+			pool.shutdownNow ();
+		} else {
+			for (Future<Void> f : pending) {
+				f.cancel (true);
+			}
+		}
+	}
+
+}
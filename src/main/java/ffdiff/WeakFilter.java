@@ -0,0 +1,83 @@
+package ffdiff;
+
+/**
+ * Bloom filter of the rolling weak checksums of base blocks, sized from the base block count.
+ * Lets rolling chunking skip the strong hash of almost every target window that matches no base block.
+ *
+ * <pre>
+ * 32 .. 64 bits per block, 4 bits in one word per checksum, so one memory access per target window:
+ * 1 false positive in 1,200 .. 6,400 windows, 64 MB for 16M blocks at most.
+ * </pre>
+ */
+public class WeakFilter {
+
+	//------------------------------------------------------------------------
+	private static final int BITS_PER_BLOCK = 32, MIN_WORDS = 64, MAX_WORDS = 1 << 23;
+
+	//------------------------------------------------------------------------
+	private final long[] words;
+	private final int mask;
+
+	//------------------------------------------------------------------------
+	/** @param expected Expected block count */
+	public WeakFilter (final long expected) {
+		long n = MIN_WORDS;
+		while (n * Long.SIZE < expected * BITS_PER_BLOCK && n < MAX_WORDS) {
+			n *= 2;
+		}
+		words = new long [(int) n];
+		mask = (int) n - 1;
+	}
+
+	//------------------------------------------------------------------------
+	private WeakFilter (final long[] words) {
+		this.words = words;
+		mask = words.length - 1;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Filter over words of {@link #toLongArray}, or null if they are not a filter */
+	public static WeakFilter valueOf (final long[] words) {
+		if (Integer.bitCount (words.length) != 1 || words.length < MIN_WORDS || words.length > MAX_WORDS) {
+			return null;
+		}
+		return new WeakFilter (words);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return All words, shared */
+	public long[] toLongArray () {
+		return words;
+	}
+
+	//------------------------------------------------------------------------
+	public long bytes () {
+		return (long) words.length * Long.BYTES;
+	}
+
+	//------------------------------------------------------------------------
+	public void add (final int weak) {
+		final long h = mix (weak);
+		words[(int) (h >>> 40) & mask] |= bits (h);
+	}
+
+	//------------------------------------------------------------------------
+	/** @return false if no base block has this weak checksum, true if one probably has */
+	public boolean mightContain (final int weak) {
+		final long h = mix (weak), bits = bits (h);
+		return (words[(int) (h >>> 40) & mask] & bits) == bits;
+	}
+
+	//------------------------------------------------------------------------
+	/** @return Bits of the weak checksum in its word, one per probe, from bits 16 .. 39 of its mixed value */
+	private static long bits (final long h) {
+		return (1L << (h >>> 16)) | (1L << (h >>> 22)) | (1L << (h >>> 28)) | (1L << (h >>> 34));
+	}
+
+	//------------------------------------------------------------------------
+	/** Spread the weak checksum, whose low half is a narrow byte sum, over the high bits: word from 40 .. 63 */
+	private static long mix (final int weak) {
+		return (weak & 0xffffffffL) * 0x9e3779b97f4a7c15L;
+	}
+
+}
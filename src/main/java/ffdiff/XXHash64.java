@@ -0,0 +1,81 @@
+package ffdiff;
+
+import java.nio.*;
+
+/** xxHash64: fast non-cryptographic 64 bits hash, to find candidate blocks before any strong hash */
+public class XXHash64 {
+
+	//------------------------------------------------------------------------
+	private static final long P1 = 0x9E3779B185EBCA87L, P2 = 0xC2B2AE3D27D4EB4FL, P3 = 0x165667B19E3779F9L,
+		P4 = 0x85EBCA77C2B2AE63L, P5 = 0x27D4EB2F165667C5L;
+
+	//------------------------------------------------------------------------
+	/** Hash buffer remaining bytes with seed 0, position unchanged */
+	public static long hash (final ByteBuffer raw) {
+		final boolean swap = raw.order () == ByteOrder.BIG_ENDIAN;
+		final int length = raw.remaining (), end = raw.limit ();
+		int i = raw.position ();
+		long h;
+
+		if (length >= 32) {
+			long v1 = P1 + P2, v2 = P2, v3 = 0, v4 = -P1;
+			for (; i <= end - 32 ; i += 32) {
+				v1 = round (v1, getLong (raw, i,      swap));
+				v2 = round (v2, getLong (raw, i + 8,  swap));
+				v3 = round (v3, getLong (raw, i + 16, swap));
+				v4 = round (v4, getLong (raw, i + 24, swap));
+			}
+			h = Long.rotateLeft (v1, 1) + Long.rotateLeft (v2, 7) + Long.rotateLeft (v3, 12) + Long.rotateLeft (v4, 18);
+			h = merge (h, v1);
+			h = merge (h, v2);
+			h = merge (h, v3);
+			h = merge (h, v4);
+		} else {
+			h = P5;
+		}
+		h += length;
+
+		for (; i <= end - 8 ; i += 8) {
+			h ^= round (0, getLong (raw, i, swap));
+			h = Long.rotateLeft (h, 27) * P1 + P4;
+		}
+		if (i <= end - 4) {
+			final int k = raw.getInt (i);
+			h ^= ((swap ? Integer.reverseBytes (k) : k) & 0xffffffffL) * P1;
+			h = Long.rotateLeft (h, 23) * P2 + P3;
+			i += 4;
+		}
+		for (; i < end ; i++) {
+			h ^= (raw.get (i) & 0xff) * P5;
+			h = Long.rotateLeft (h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	//------------------------------------------------------------------------
+	/** Little-endian 8 bytes */
+	private static long getLong (final ByteBuffer raw, final int i, final boolean swap) {
+		final long l = raw.getLong (i);
+		return swap ? Long.reverseBytes (l) : l;
+	}
+
+	//------------------------------------------------------------------------
+	private static long round (long acc, final long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft (acc, 31);
+		return acc * P1;
+	}
+
+	//------------------------------------------------------------------------
+	private static long merge (long acc, final long value) {
+		acc ^= round (0, value);
+		return acc * P1 + P4;
+	}
+
+}
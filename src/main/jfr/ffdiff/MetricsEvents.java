@@ -0,0 +1,61 @@
+package ffdiff;
+
+import jdk.jfr.*;
+
+/**
+ * Flight Recorder events of {@link Metrics}, in category ffdiff.
+ * Built from src/main/jfr by the jfr profile, on JDK 11 or later; only loaded when the JVM has jdk.jfr too,
+ * so ffdiff still builds with --release 8 and runs on JVMs without Flight Recorder.
+ */
+class MetricsEvents implements Metrics.Events {
+
+	//------------------------------------------------------------------------
+	@Name ("ffdiff.Phase")
+	@Label ("Phase")
+	@Category ("ffdiff")
+	@Description ("Phase of a diff or patch, with the bytes it goes through")
+	static class PhaseEvent extends Event {
+		@Label ("Mode") String mode;
+		@Label ("Phase") String phase;
+		@Label ("Bytes") @DataAmount long bytes;
+	}
+
+	//------------------------------------------------------------------------
+	@Name ("ffdiff.Counter")
+	@Label ("Counter")
+	@Category ("ffdiff")
+	@Description ("Counter of a diff or patch, at its end")
+	static class CounterEvent extends Event {
+		@Label ("Mode") String mode;
+		@Label ("Name") String name;
+		@Label ("Value") long value;
+	}
+
+	//------------------------------------------------------------------------
+	@Override public Object begin (final String mode, final String phase) {
+		final PhaseEvent e = new PhaseEvent ();
+		e.mode = mode;
+		e.phase = phase;
+		e.begin ();
+		return e;
+	}
+
+	//------------------------------------------------------------------------
+	@Override public void commit (final Object event, final long bytes) {
+		final PhaseEvent e = (PhaseEvent) event;
+		e.bytes = bytes;
+		e.commit ();
+	}
+
+	//------------------------------------------------------------------------
+	@Override public void counter (final String mode, final String name, final long value) {
+		final CounterEvent e = new CounterEvent ();
+		if (e.isEnabled ()) {
+			e.mode = mode;
+			e.name = name;
+			e.value = value;
+			e.commit ();
+		}
+	}
+
+}